@@ -0,0 +1,79 @@
+package net.defraine.wstcp.bench;
+
+import net.defraine.wstcp.Threads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// loopback TCP server that sends back everything it receives
+public class EchoServer implements Runnable {
+    protected final ServerSocket server;
+    protected final boolean virtualThreads;
+
+    public EchoServer() throws IOException {
+        this(false);
+    }
+
+    // serves each connection on a virtual thread when supported, so that many idle connections
+    // do not add platform threads
+    public EchoServer(boolean virtualThreads) throws IOException {
+        this.virtualThreads = virtualThreads;
+        server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this, "echo-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final Socket sock;
+            try {
+                sock = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread handler = Threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(sock);
+                    } catch (IOException e) {
+                        // connection reset, nothing to report
+                    } finally {
+                        try {
+                            sock.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }, virtualThreads);
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    protected void serve(Socket sock) throws IOException {
+        sock.setTcpNoDelay(true);
+        InputStream is = sock.getInputStream();
+        OutputStream os = sock.getOutputStream();
+        byte[] buf = new byte[64*1024];
+        int bytesRead;
+        while ((bytesRead = is.read(buf)) != -1)
+            os.write(buf, 0, bytesRead);
+        sock.shutdownOutput();
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+}
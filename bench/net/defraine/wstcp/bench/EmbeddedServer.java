@@ -0,0 +1,61 @@
+package net.defraine.wstcp.bench;
+
+import net.defraine.wstcp.server.WSTcpServletContextListener;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+
+// the webapp in an embedded Tomcat on loopback, with a generated server.conf
+public class EmbeddedServer {
+    protected static final String contextPath = "/wstcp";
+
+    // keep a reference, or the level is lost when the logger is collected
+    protected static final Logger catalinaLogger = Logger.getLogger("org.apache.catalina");
+
+    protected final Path baseDir;
+    protected final Tomcat tomcat;
+    protected final int port;
+
+    public EmbeddedServer(String serverConf) throws IOException, LifecycleException {
+        catalinaLogger.setLevel(Level.WARNING);
+        baseDir = Files.createTempDirectory("wstcp-bench");
+        Path docBase = baseDir.resolve("webapp");
+        Files.createDirectories(docBase.resolve("WEB-INF"));
+        Files.write(docBase.resolve("WEB-INF/server.conf"), serverConf.getBytes(StandardCharsets.UTF_8));
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        tomcat.getConnector();
+        Context ctx = tomcat.addContext(contextPath, docBase.toString());
+        ctx.addServletContainerInitializer(new WsSci(), null);
+        ctx.addApplicationListener(WSTcpServletContextListener.class.getName());
+        // requests need a servlet to map to before the WebSocket filter sees them
+        Tomcat.addServlet(ctx, "default", DefaultServlet.class.getName());
+        ctx.addServletMappingDecoded("/", "default");
+        tomcat.start();
+        port = tomcat.getConnector().getLocalPort();
+    }
+
+    public String url(String path) {
+        return "ws://localhost:" + port + contextPath + path;
+    }
+
+    public void stop() throws IOException, LifecycleException {
+        tomcat.stop();
+        tomcat.destroy();
+        try (Stream<Path> paths = Files.walk(baseDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package net.defraine.wstcp.bench;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.WebSocketContainer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.catalina.LifecycleException;
+
+// load generator on loopback: the webapp in an embedded container, with an endpoint to an echo
+// server and one to a sink server, and many client sessions in this process at once; interactive
+// sessions do round trips of a small request, bulk sessions stream into the sink, and churn
+// threads open a session for a single round trip and close it again; after a warmup, it reports
+// the round trip latency, the bytes per second into the sink, and the sessions set up per second;
+// idle tunnels, opened first and kept open throughout, show what each tunnel costs in threads
+// and memory
+public class LoadTest {
+    protected static final int chunkSize = 64*1024;
+
+    protected static int interactive = 16;
+    protected static int bulk = 2;
+    protected static int churn = 2;
+    protected static int tunnels = 0;
+    protected static int warmup = 5;
+    protected static int duration = 20;
+    protected static int size = 32;
+    protected static int interval = 0;
+    protected static boolean scramble = false;
+    protected static boolean virtualThreads = false;
+    protected static String options = "";
+    protected static String histograms = null;
+
+    protected final WebSocketContainer container;
+    protected final String echoUrl;
+    protected final String sinkUrl;
+    // in nanoseconds; an interactive round trip counts from when it was due, so that a stall also
+    // delays the requests that should have been sent meanwhile
+    protected final Recorder roundTrips = new Recorder(3);
+    // from opening a churn session until its echo came back
+    protected final Recorder setups = new Recorder(3);
+    protected final AtomicLong errors = new AtomicLong(0);
+    protected final List<Thread> workers = new ArrayList<>();
+    protected volatile boolean stopping = false;
+
+    public LoadTest(WebSocketContainer container, String echoUrl, String sinkUrl) {
+        this.container = container;
+        this.echoUrl = echoUrl;
+        this.sinkUrl = sinkUrl;
+    }
+
+    protected void error(String workload, Exception e) {
+        errors.incrementAndGet();
+        if (!stopping)
+            System.err.println("Error: " + workload + ": " + e);
+    }
+
+    protected void start(String name, Runnable worker) {
+        Thread t = new Thread(worker, name);
+        t.setDaemon(true);
+        workers.add(t);
+        t.start();
+    }
+
+    // requests of size bytes, each interval microseconds after the last, or back to back for 0
+    protected void interactive() {
+        byte[] buf = new byte[size];
+        long intervalNanos = TimeUnit.MICROSECONDS.toNanos(interval);
+        try {
+            Tunnel tunnel = new Tunnel(container, echoUrl, scramble, virtualThreads);
+            long due = System.nanoTime();
+            while (!stopping) {
+                if (intervalNanos > 0) {
+                    due += intervalNanos;
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                } else {
+                    due = System.nanoTime();
+                }
+                tunnel.write(buf, size);
+                tunnel.readFully(buf, size);
+                roundTrips.recordValue(System.nanoTime() - due);
+            }
+            tunnel.close();
+        } catch (IOException | DeploymentException | InterruptedException e) {
+            error("interactive", e);
+        }
+    }
+
+    protected void bulk() {
+        byte[] buf = new byte[chunkSize];
+        try {
+            Tunnel tunnel = new Tunnel(container, sinkUrl, scramble, virtualThreads);
+            while (!stopping)
+                tunnel.write(buf, chunkSize);
+            tunnel.close();
+        } catch (IOException | DeploymentException | InterruptedException e) {
+            error("bulk", e);
+        }
+    }
+
+    // a failed session counts as an error, and the next one starts
+    protected void churn() {
+        byte[] buf = new byte[size];
+        while (!stopping) {
+            long start = System.nanoTime();
+            try {
+                Tunnel tunnel = new Tunnel(container, echoUrl, scramble, virtualThreads);
+                tunnel.write(buf, size);
+                tunnel.readFully(buf, size);
+                setups.recordValue(System.nanoTime() - start);
+                tunnel.close();
+            } catch (IOException | DeploymentException | InterruptedException e) {
+                error("churn", e);
+            }
+        }
+    }
+
+    // the resident memory of this process in KiB, from /proc on Linux, or -1
+    protected static long residentKiB() {
+        try (BufferedReader status = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = status.readLine()) != null) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.substring(6).trim().split(" ")[0]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    // opens tunnels idle echo tunnels, each after a round trip, and prints what they added in
+    // platform threads and resident memory, of server, client and echo server together
+    protected List<Tunnel> openIdle() throws IOException, DeploymentException, InterruptedException {
+        List<Tunnel> idle = new ArrayList<>(tunnels);
+        if (tunnels == 0)
+            return idle;
+        byte[] buf = new byte[1];
+        System.gc();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rssBefore = residentKiB();
+        long start = System.nanoTime();
+        for (int i = 0; i < tunnels; ++i) {
+            Tunnel tunnel = new Tunnel(container, echoUrl, scramble, virtualThreads);
+            tunnel.write(buf, 1);
+            tunnel.readFully(buf, 1);
+            idle.add(tunnel);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // threads that only run while a tunnel is busy end meanwhile
+        TimeUnit.SECONDS.sleep(2);
+        System.gc();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long rss = residentKiB();
+        System.out.println(String.format("idle: %d tunnels opened in %.1f s, platform threads %d -> %d (%.2f per tunnel)%s",
+                                         tunnels, seconds, threadsBefore, threads, (threads - threadsBefore) / (double)tunnels,
+                                         rss < 0 ? "" : String.format(", RSS %d -> %d MiB (%.0f KiB per tunnel)",
+                                                                      rssBefore / 1024, rss / 1024, (rss - rssBefore) / (double)tunnels)));
+        return idle;
+    }
+
+    protected static String micros(Histogram h, double percentile) {
+        return String.format("%.0f", h.getValueAtPercentile(percentile) / 1e3);
+    }
+
+    protected static String latencies(Histogram h) {
+        return "p50 " + micros(h, 50) + " p99 " + micros(h, 99) + " p999 " + micros(h, 99.9) + " max " + micros(h, 100) + " us";
+    }
+
+    // the percentile distribution in microseconds, as read by HdrHistogram's plotter
+    protected static void write(Histogram h, String name) throws FileNotFoundException {
+        try (PrintStream out = new PrintStream(histograms + "-" + name + ".hgrm")) {
+            h.outputPercentileDistribution(out, 1e3);
+        }
+    }
+
+    public void run(SinkServer sink) throws IOException, DeploymentException, InterruptedException {
+        List<Tunnel> idle = openIdle();
+        for (int i = 0; i < interactive; ++i) {
+            start("interactive-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    interactive();
+                }
+            });
+        }
+        for (int i = 0; i < bulk; ++i) {
+            start("bulk-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    bulk();
+                }
+            });
+        }
+        for (int i = 0; i < churn; ++i) {
+            start("churn-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    churn();
+                }
+            });
+        }
+        TimeUnit.SECONDS.sleep(warmup);
+        // what the warmup recorded is dropped
+        roundTrips.getIntervalHistogram();
+        setups.getIntervalHistogram();
+        long startErrors = errors.get();
+        long startReceived = sink.getReceived();
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        Histogram roundTrip = roundTrips.getIntervalHistogram();
+        Histogram setup = setups.getIntervalHistogram();
+        long received = sink.getReceived() - startReceived;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long failed = errors.get() - startErrors;
+        stopping = true;
+
+        System.out.println(String.format("%d s after %d s warmup, options: %s%s", duration, warmup, options, scramble ? " scrambled" : ""));
+        if (interactive > 0) {
+            System.out.println(String.format("interactive: %d sessions, %.0f round trips/s of %d bytes, %s",
+                                             interactive, roundTrip.getTotalCount() / seconds, size, latencies(roundTrip)));
+        }
+        if (bulk > 0)
+            System.out.println(String.format("bulk: %d sessions, %.1f MB/s into the sink", bulk, received / seconds / 1e6));
+        if (churn > 0) {
+            System.out.println(String.format("churn: %d threads, %.1f sessions/s, setup %s",
+                                             churn, setup.getTotalCount() / seconds, latencies(setup)));
+        }
+        System.out.println("errors: " + failed);
+        if (histograms != null) {
+            if (interactive > 0)
+                write(roundTrip, "roundtrip");
+            if (churn > 0)
+                write(setup, "setup");
+        }
+        for (Thread t : workers)
+            t.join(TimeUnit.SECONDS.toMillis(10));
+        for (Tunnel tunnel : idle)
+            tunnel.close();
+    }
+
+    protected static boolean parseArgs(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("-scramble")) {
+                scramble = true;
+            } else if (arg.equals("-virtual-threads")) {
+                virtualThreads = true;
+            } else if (arg.equals("-options") || arg.equals("-histograms")) {
+                if (i + 1 == args.length) {
+                    System.err.println("Error: missing value for option: " + arg);
+                    return false;
+                }
+                if (arg.equals("-options"))
+                    options = args[++i];
+                else
+                    histograms = args[++i];
+            } else if (arg.equals("-interactive") || arg.equals("-bulk") || arg.equals("-churn") || arg.equals("-tunnels") || arg.equals("-warmup")
+                       || arg.equals("-duration") || arg.equals("-size") || arg.equals("-interval")) {
+                if (i + 1 == args.length) {
+                    System.err.println("Error: missing value for option: " + arg);
+                    return false;
+                }
+                int value;
+                try {
+                    value = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    value = -1;
+                }
+                if (value < 0 || (value == 0 && (arg.equals("-duration") || arg.equals("-size")))) {
+                    System.err.println("Error: invalid value for option: " + arg);
+                    return false;
+                }
+                if (arg.equals("-interactive"))
+                    interactive = value;
+                else if (arg.equals("-bulk"))
+                    bulk = value;
+                else if (arg.equals("-churn"))
+                    churn = value;
+                else if (arg.equals("-tunnels"))
+                    tunnels = value;
+                else if (arg.equals("-warmup"))
+                    warmup = value;
+                else if (arg.equals("-duration"))
+                    duration = value;
+                else if (arg.equals("-size"))
+                    size = value;
+                else
+                    interval = value;
+            } else {
+                System.err.println("Error: unknown option: " + arg);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException, DeploymentException, LifecycleException, InterruptedException {
+        if (!parseArgs(args)) {
+            System.err.println("Usage: " + LoadTest.class.getName() + " [-interactive <n>] [-bulk <n>] [-churn <n>] [-tunnels <n>] [-size <bytes>] [-interval <us>] [-warmup <s>] [-duration <s>] [-options <endpoint options>] [-scramble] [-virtual-threads] [-histograms <prefix>]");
+            System.exit(1);
+        }
+        EchoServer echo = new EchoServer(virtualThreads);
+        SinkServer sink = new SinkServer(virtualThreads);
+        EmbeddedServer server = new EmbeddedServer("/echo localhost:" + echo.getPort() + " " + options + "\n"
+                                                   + "/sink localhost:" + sink.getPort() + " " + options + "\n");
+        LoadTest test = new LoadTest(ContainerProvider.getWebSocketContainer(), server.url("/echo"), server.url("/sink"));
+        try {
+            test.run(sink);
+        } finally {
+            server.stop();
+            echo.close();
+            sink.close();
+        }
+        System.exit(test.errors.get() == 0 ? 0 : 1);
+    }
+}
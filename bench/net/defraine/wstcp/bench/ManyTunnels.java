@@ -0,0 +1,219 @@
+package net.defraine.wstcp.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+// opens many tunnels through a running server to a loopback echo server in this process, keeps
+// them open, and records the thread count and resident memory of the server process as they add
+// up; the endpoint must point at the echo port; Linux only, as it reads /proc/<pid>/status
+public class ManyTunnels {
+    protected static final byte[] ping = { 'p', 'i', 'n', 'g' };
+
+    // echoes all connections from one selector thread, so that the tunnels do not add threads
+    // to this process
+    protected static class Echo implements Runnable {
+        protected final Selector selector;
+        protected final ServerSocketChannel server;
+
+        public Echo(int port) throws IOException {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isAcceptable())
+                            accept();
+                        else
+                            echo(key);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error: echo server: " + e.getMessage());
+            }
+        }
+
+        protected void accept() throws IOException {
+            SocketChannel ch = server.accept();
+            if (ch == null)
+                return;
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
+        }
+
+        // the buffer holds what was read and not yet written back; reading waits while it does
+        protected void echo(SelectionKey key) {
+            SocketChannel ch = (SocketChannel)key.channel();
+            ByteBuffer buf = (ByteBuffer)key.attachment();
+            try {
+                if (key.isReadable() && ch.read(buf) == -1) {
+                    ch.close();
+                    return;
+                }
+                buf.flip();
+                ch.write(buf);
+                buf.compact();
+                key.interestOps(buf.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            } catch (IOException e) {
+                try {
+                    ch.close();
+                } catch (IOException e2) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    // a client session that completes one round trip of the ping and then stays idle
+    protected static class Tunnel extends Endpoint {
+        protected final CountDownLatch echoed = new CountDownLatch(1);
+        protected int received = 0;
+
+        @Override
+        public void onOpen(Session session, EndpointConfig config) {
+            session.addMessageHandler(byte[].class, new MessageHandler.Partial<byte[]>() {
+                @Override
+                public void onMessage(byte[] msg, boolean last) {
+                    received += msg.length;
+                    if (received >= ping.length)
+                        echoed.countDown();
+                }
+            });
+        }
+    }
+
+    // the Threads and VmRSS (in KiB) lines of /proc/<pid>/status
+    protected static long[] sample(String pid) throws IOException {
+        long[] values = new long[2];
+        try (BufferedReader r = new BufferedReader(new FileReader("/proc/" + pid + "/status"))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("Threads:"))
+                    values[0] = Long.parseLong(line.substring(8).trim());
+                else if (line.startsWith("VmRSS:"))
+                    values[1] = Long.parseLong(line.substring(6).replace("kB", "").trim());
+            }
+        }
+        return values;
+    }
+
+    protected static void print(int tunnels, long[] values) {
+        System.out.println(String.format("%8d %8d %12d", tunnels, values[0], values[1]));
+    }
+
+    protected static int count = 10000;
+    protected static int step = 1000;
+    protected static int echoPort = 0;
+    protected static String pid;
+    protected static String endPointURL;
+
+    protected static boolean parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (arg.equals("-count") && i+1 < args.length) {
+                    count = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-step") && i+1 < args.length) {
+                    step = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-echo") && i+1 < args.length) {
+                    echoPort = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-pid") && i+1 < args.length) {
+                    pid = args[++i];
+                } else if (!arg.isEmpty() && arg.charAt(0) == '-') {
+                    System.err.println("Error: unrecognized command line option: " + arg);
+                    return false;
+                } else if (endPointURL == null) {
+                    endPointURL = arg;
+                } else {
+                    System.err.println("Error: too many arguments");
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: invalid number: " + e.getMessage());
+            return false;
+        }
+        if (endPointURL == null || pid == null || echoPort <= 0 || count <= 0 || step <= 0) {
+            System.err.println("Error: too few arguments");
+            return false;
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!parseArgs(args)) {
+            System.err.println("Usage: " + ManyTunnels.class.getName() + " -pid <server pid> -echo <port> [-count <n>] [-step <n>] <endpoint-url>");
+            System.exit(1);
+        }
+        URI uri;
+        try {
+            uri = new URI(endPointURL);
+        } catch (URISyntaxException e) {
+            System.err.println("Error: invalid endpoint url: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        Thread echo = new Thread(new Echo(echoPort));
+        echo.setDaemon(true);
+        echo.start();
+
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        List<Session> sessions = new ArrayList<Session>(count);
+        System.out.println(" tunnels  threads      rss_kib");
+        long[] before = sample(pid);
+        print(0, before);
+        long[] after = before;
+        for (int i = 1; i <= count; ++i) {
+            Tunnel tunnel = new Tunnel();
+            Session session = container.connectToServer(tunnel, ClientEndpointConfig.Builder.create().build(), uri);
+            session.getBasicRemote().sendBinary(ByteBuffer.wrap(ping));
+            if (!tunnel.echoed.await(10, TimeUnit.SECONDS)) {
+                System.err.println("Error: no echo on tunnel " + i);
+                System.exit(1);
+            }
+            sessions.add(session);
+            if (i % step == 0 || i == count) {
+                after = sample(pid);
+                print(i, after);
+            }
+        }
+        System.out.println(String.format("per tunnel: %.2f threads, %.1f KiB",
+                                         (double)(after[0] - before[0]) / count,
+                                         (double)(after[1] - before[1]) / count));
+        for (Session session : sessions)
+            session.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,56 @@
+package net.defraine.wstcp.bench;
+
+import net.defraine.wstcp.Scrambler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Scrambler throughput; divide by bufferSize for the time per byte
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ScramblerBenchmark {
+    @Param({"64", "1024", "4096", "65536"})
+    public int bufferSize;
+
+    // misaligned offsets take the byte-wise path at the edges
+    @Param({"0", "3"})
+    public int offset;
+
+    protected Scrambler scrambler;
+    protected byte[] array;
+    protected ByteBuffer direct;
+
+    @Setup
+    public void setup() {
+        scrambler = new Scrambler(0x5eedL);
+        array = new byte[offset + bufferSize];
+        direct = ByteBuffer.allocateDirect(offset + bufferSize);
+    }
+
+    @Benchmark
+    public byte[] heap() {
+        scrambler.scramble(array, offset, bufferSize);
+        return array;
+    }
+
+    @Benchmark
+    public ByteBuffer direct() {
+        direct.limit(offset + bufferSize).position(offset);
+        return scrambler.scramble(direct);
+    }
+}
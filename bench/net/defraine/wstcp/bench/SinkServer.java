@@ -0,0 +1,30 @@
+package net.defraine.wstcp.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+// loopback TCP server that reads and counts everything it receives, and sends nothing back
+public class SinkServer extends EchoServer {
+    protected final AtomicLong received = new AtomicLong(0);
+
+    public SinkServer(boolean virtualThreads) throws IOException {
+        super(virtualThreads);
+    }
+
+    // bytes received over all connections so far
+    public long getReceived() {
+        return received.get();
+    }
+
+    @Override
+    protected void serve(Socket sock) throws IOException {
+        InputStream is = sock.getInputStream();
+        byte[] buf = new byte[64*1024];
+        int bytesRead;
+        while ((bytesRead = is.read(buf)) != -1)
+            received.addAndGet(bytesRead);
+        sock.shutdownOutput();
+    }
+}
@@ -0,0 +1,90 @@
+package net.defraine.wstcp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.catalina.LifecycleException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// time to first byte of the client as a proxy command: from starting its JVM until a byte written
+// to its stdin comes back from the echo server; runs client/wstcp-client.jar as built by make,
+// with and without the class data sharing archive next to it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+public class StartupBenchmark {
+    protected static final String clientJar = "client/wstcp-client.jar";
+    protected static final String clientArchive = "client/wstcp-client.jsa";
+
+    @Param({"false", "true"})
+    public boolean archive;
+
+    protected EchoServer echo;
+    protected EmbeddedServer server;
+    protected List<String> command;
+    protected Process client;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException, LifecycleException {
+        if (archive && !new File(clientArchive).isFile())
+            throw new IllegalStateException("no " + clientArchive + ", run make first");
+        echo = new EchoServer();
+        server = new EmbeddedServer("/echo localhost:" + echo.getPort() + "\n");
+        command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (archive)
+            command.add("-XX:SharedArchiveFile=" + clientArchive);
+        command.add("-jar");
+        command.add(new File(clientJar).getAbsolutePath());
+        command.add(server.url("/echo"));
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException, LifecycleException {
+        server.stop();
+        echo.close();
+    }
+
+    // the client ends after the end of its input, outside of the measurement
+    @TearDown(Level.Iteration)
+    public void finish() throws IOException, InterruptedException {
+        client.getOutputStream().close();
+        InputStream stdout = client.getInputStream();
+        byte[] buf = new byte[1024];
+        while (stdout.read(buf) != -1)
+            ;
+        client.waitFor();
+    }
+
+    @Benchmark
+    public int firstByte() throws IOException {
+        client = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        OutputStream stdin = client.getOutputStream();
+        stdin.write('x');
+        stdin.flush();
+        InputStream stdout = client.getInputStream();
+        int b = stdout.read();
+        if (b != 'x')
+            throw new IOException("unexpected output of the client: " + b);
+        return b;
+    }
+}
@@ -0,0 +1,78 @@
+package net.defraine.wstcp.bench;
+
+import net.defraine.wstcp.client.WSTcpClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.DeploymentException;
+import javax.websocket.WebSocketContainer;
+
+// a WSTcpClient session in this process, fed and drained through OS pipes like its stdin and stdout
+public class Tunnel {
+    protected final WSTcpClient client;
+    protected final OutputStream input;
+    protected final InputStream output;
+
+    public Tunnel(WebSocketContainer container, String url, boolean scramble) throws IOException, DeploymentException {
+        this(container, url, scramble, false);
+    }
+
+    // the same, with the reader of the client on a virtual thread when supported
+    public Tunnel(WebSocketContainer container, String url, boolean scramble, boolean virtualThreads) throws IOException, DeploymentException {
+        Pipe inPipe = Pipe.open();
+        input = Channels.newOutputStream(inPipe.sink());
+        InputStream clientIn = Channels.newInputStream(inPipe.source());
+        Pipe outPipe = Pipe.open();
+        output = Channels.newInputStream(outPipe.source());
+        OutputStream clientOut = Channels.newOutputStream(outPipe.sink());
+        Long optKey = null;
+        if (scramble) {
+            long key = System.nanoTime();
+            url = url + "?key=" + Long.toHexString(key);
+            optKey = Long.valueOf(key);
+        }
+        client = new WSTcpClient(System.err, clientIn, clientOut, optKey);
+        client.setVirtualThreads(virtualThreads);
+        container.connectToServer(client, ClientEndpointConfig.Builder.create().build(), URI.create(url));
+    }
+
+    // what is written here is sent through the tunnel
+    public OutputStream getInput() {
+        return input;
+    }
+
+    // what comes back through the tunnel
+    public InputStream getOutput() {
+        return output;
+    }
+
+    public void write(byte[] buf, int length) throws IOException {
+        input.write(buf, 0, length);
+    }
+
+    public void readFully(byte[] buf, int length) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int bytesRead = output.read(buf, pos, length - pos);
+            if (bytesRead == -1)
+                throw new IOException("tunnel closed after " + pos + " of " + length + " bytes");
+            pos += bytesRead;
+        }
+    }
+
+    // half-close the input, drain the output and wait for the session to end
+    public void close() throws IOException, InterruptedException {
+        input.close();
+        byte[] buf = new byte[4*1024];
+        while (output.read(buf) != -1)
+            ;
+        client.waitUntilDone();
+        if (client.getErrorCount() != 0)
+            throw new IOException("tunnel ended with " + client.getErrorCount() + " errors");
+    }
+}
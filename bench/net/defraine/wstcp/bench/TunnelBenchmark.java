@@ -0,0 +1,128 @@
+package net.defraine.wstcp.bench;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.WebSocketContainer;
+import org.apache.catalina.LifecycleException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// end-to-end through the webapp in an embedded container, to a loopback echo server;
+// server and client run in the benchmark JVM, so -prof gc shows the allocation of both
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TunnelBenchmark {
+    protected static final int chunkSize = 64*1024;
+    protected static final int bulkChunks = 16;
+    protected static final int smallSize = 32;
+
+    // the endpoint options in server.conf
+    @Param({"io=blocking", "threads=virtual", "io=nio"})
+    public String options;
+
+    @Param({"false", "true"})
+    public boolean scramble;
+
+    protected EchoServer echo;
+    protected EmbeddedServer server;
+    protected WebSocketContainer container;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException, LifecycleException {
+        echo = new EchoServer();
+        server = new EmbeddedServer("/echo localhost:" + echo.getPort() + " " + options + "\n");
+        container = ContainerProvider.getWebSocketContainer();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException, LifecycleException {
+        server.stop();
+        echo.close();
+    }
+
+    protected Tunnel open() throws IOException, DeploymentException {
+        return new Tunnel(container, server.url("/echo"), scramble);
+    }
+
+    // a tunnel that stays open for the whole trial
+    @State(Scope.Thread)
+    public static class OpenTunnel {
+        protected Tunnel tunnel;
+        protected ExecutorService writer;
+        protected final byte[] sendBuf = new byte[chunkSize];
+        protected final byte[] buf = new byte[chunkSize];
+
+        @Setup(Level.Trial)
+        public void open(TunnelBenchmark bench) throws IOException, DeploymentException {
+            tunnel = bench.open();
+            writer = Executors.newSingleThreadExecutor();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException, InterruptedException {
+            writer.shutdown();
+            tunnel.close();
+        }
+    }
+
+    // streams through the tunnel while reading back; bytes per second is ops per second times 64 KiB
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(bulkChunks)
+    public void bulk(final OpenTunnel t) throws IOException, InterruptedException, ExecutionException {
+        Future<Void> sent = t.writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                for (int i = 0; i < bulkChunks; ++i)
+                    t.tunnel.write(t.sendBuf, chunkSize);
+                return null;
+            }
+        });
+        for (int i = 0; i < bulkChunks; ++i)
+            t.tunnel.readFully(t.buf, chunkSize);
+        sent.get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip(OpenTunnel t) throws IOException {
+        t.tunnel.write(t.buf, smallSize);
+        t.tunnel.readFully(t.buf, smallSize);
+    }
+
+    // a complete session: handshake, connect, one round trip and close;
+    // with -prof gc, gc.alloc.rate.norm is the allocation per session
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void session() throws IOException, DeploymentException, InterruptedException {
+        Tunnel tunnel = open();
+        byte[] buf = new byte[smallSize];
+        tunnel.write(buf, smallSize);
+        tunnel.readFully(buf, smallSize);
+        tunnel.close();
+    }
+}
@@ -0,0 +1,61 @@
+package net.defraine.wstcp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// shared pool of direct buffers, in power-of-two size tiers
+public class BufferPool {
+    public static final int minSize = 4*1024;
+    public static final int maxSize = 256*1024;
+
+    // bytes retained per tier when idle
+    protected static final int retainPerTier = 4*1024*1024;
+
+    public static final BufferPool shared = new BufferPool();
+
+    protected final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    protected final AtomicInteger[] freeCount;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        int tiers = tier(maxSize) + 1;
+        free = new ConcurrentLinkedQueue[tiers];
+        freeCount = new AtomicInteger[tiers];
+        for (int i = 0; i < tiers; ++i) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger(0);
+        }
+    }
+
+    protected static int tier(int size) {
+        if (size <= minSize)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    // a cleared buffer with capacity of at least size, to be given back with release
+    public ByteBuffer acquire(int size) {
+        if (size > maxSize)
+            return ByteBuffer.allocateDirect(size);
+        int t = tier(size);
+        ByteBuffer buf = free[t].poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(minSize << t);
+        freeCount[t].decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (!buf.isDirect() || capacity > maxSize || Integer.bitCount(capacity) != 1 || capacity < minSize)
+            return;
+        int t = tier(capacity);
+        if (freeCount[t].incrementAndGet() * capacity > retainPerTier) {
+            freeCount[t].decrementAndGet();
+            return;
+        }
+        free[t].add(buf);
+    }
+}
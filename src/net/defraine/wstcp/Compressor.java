@@ -0,0 +1,78 @@
+package net.defraine.wstcp;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+// compresses the messages of one direction of a session as one deflate stream, so that small
+// messages refer to the data before them; each message starts with a flag byte: DEFLATED, or
+// RAW when the data did not compress, then both sides start a new stream
+public class Compressor {
+    public static final byte RAW = 0;
+    public static final byte DEFLATED = 1;
+
+    // the client asks with compress=deflate in the query, the server confirms with this header
+    public static final String queryParam = "compress";
+    public static final String method = "deflate";
+    public static final String confirmHeader = "X-WSTcp-Compress";
+
+    protected static final int maxBackoff = 256;
+    // the deflater takes arrays, buffers only since Java 11; data goes through in chunks
+    protected static final int chunkSize = 8*1024;
+
+    protected final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    protected final byte[] input = new byte[chunkSize];
+    protected final byte[] output = new byte[chunkSize];
+    // after data that did not compress, messages to send raw without trying
+    protected int skip = 0;
+    protected int backoff = 1;
+
+    // the message for data, in a buffer from the pool; consumes data
+    public ByteBuffer compress(ByteBuffer data) {
+        int start = data.position();
+        int length = data.remaining();
+        ByteBuffer msg = BufferPool.shared.acquire(1 + length);
+        msg.limit(1 + length);
+        if (skip > 0) {
+            --skip;
+        } else {
+            msg.put(DEFLATED);
+            if (deflate(data, msg)) {
+                backoff = 1;
+                msg.flip();
+                return msg;
+            }
+            skip = backoff;
+            backoff = Math.min(2 * backoff, maxBackoff);
+        }
+        deflater.reset();
+        msg.clear();
+        data.position(start);
+        msg.put(RAW);
+        msg.put(data);
+        msg.flip();
+        return msg;
+    }
+
+    // deflates all of data into msg and flushes, false when it does not fit
+    protected boolean deflate(ByteBuffer data, ByteBuffer msg) {
+        while (msg.hasRemaining()) {
+            if (deflater.needsInput() && data.hasRemaining()) {
+                int length = Math.min(data.remaining(), input.length);
+                data.get(input, 0, length);
+                deflater.setInput(input, 0, length);
+            }
+            int flush = data.hasRemaining() ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            int room = Math.min(msg.remaining(), output.length);
+            int length = deflater.deflate(output, 0, room, flush);
+            msg.put(output, 0, length);
+            // with room left, all input is consumed and flushed
+            if (flush == Deflater.SYNC_FLUSH && length < room && deflater.needsInput())
+                return true;
+        }
+        return false;
+    }
+
+    public void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,77 @@
+package net.defraine.wstcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// the receiving side of Compressor, for messages that may arrive in parts
+public class Decompressor {
+    public interface Sink {
+        // data is only valid during the call
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    // the inflater takes arrays, buffers only since Java 11; data goes through in chunks
+    protected static final int chunkSize = 8*1024;
+
+    protected final Inflater inflater = new Inflater(true);
+    protected final byte[] input = new byte[chunkSize];
+    protected final byte[] output = new byte[2*chunkSize];
+    protected final ByteBuffer out = ByteBuffer.wrap(output);
+    protected boolean raw;
+    protected boolean closed = false;
+
+    // passes the data of part to sink; first tells whether it starts a message
+    public void decompress(ByteBuffer part, boolean first, Sink sink) throws IOException {
+        if (first) {
+            byte flag = part.get();
+            if (flag == Compressor.RAW) {
+                raw = true;
+                inflater.reset();
+            } else if (flag == Compressor.DEFLATED) {
+                raw = false;
+            } else {
+                throw new IOException("invalid compression flag " + flag);
+            }
+        }
+        if (raw) {
+            if (part.hasRemaining())
+                sink.write(part);
+            return;
+        }
+        try {
+            while (part.hasRemaining()) {
+                int length = Math.min(part.remaining(), input.length);
+                part.get(input, 0, length);
+                inflater.setInput(input, 0, length);
+                inflate(sink);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed data: " + e.getMessage());
+        }
+    }
+
+    // passes all that the inflater has for its input to sink
+    protected void inflate(Sink sink) throws IOException, DataFormatException {
+        while (true) {
+            int length = inflater.inflate(output);
+            if (length > 0) {
+                out.clear();
+                out.limit(length);
+                sink.write(out);
+            } else if (inflater.needsInput()) {
+                return;
+            } else {
+                throw new IOException("unexpected end of the compressed stream");
+            }
+        }
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        inflater.end();
+    }
+}
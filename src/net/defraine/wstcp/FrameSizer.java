@@ -0,0 +1,58 @@
+package net.defraine.wstcp;
+
+import java.util.concurrent.locks.LockSupport;
+
+// adapts the size of the frames sent by a reader loop: frames grow while reads keep filling
+// them (bulk transfer), and shrink back to small immediate frames when traffic is sparse
+public class FrameSizer {
+    public static final int defaultMinFrame = 4*1024;
+    public static final int defaultMaxFrame = 64*1024;
+
+    // granularity of waiting for more data in bulk mode
+    protected static final long pollNanos = 50*1000;
+
+    protected final int minFrame;
+    protected final int maxFrame;
+    protected final long flushDelayNanos;
+    protected int frameSize;
+
+    public FrameSizer(int minFrame, int maxFrame, long flushDelayNanos) {
+        this.minFrame = minFrame;
+        this.maxFrame = maxFrame;
+        this.flushDelayNanos = flushDelayNanos;
+        frameSize = minFrame;
+    }
+
+    public int getMaxFrame() {
+        return maxFrame;
+    }
+
+    // the number of bytes to collect for the next frame
+    public int frameSize() {
+        return frameSize;
+    }
+
+    public boolean isBulk() {
+        return frameSize > minFrame;
+    }
+
+    // report the length of a frame that was sent
+    public void sent(int length) {
+        if (length >= frameSize)
+            frameSize = Math.min(frameSize * 2, maxFrame);
+        else if (length < frameSize / 4)
+            frameSize = Math.max(frameSize / 2, minFrame);
+    }
+
+    // when nothing more is available for a frame started at frameStart: waits a little and
+    // returns true when the reader should check again, or returns false when the frame should be sent
+    public boolean linger(long frameStart) {
+        if (!isBulk() || Thread.currentThread().isInterrupted())
+            return false;
+        long left = frameStart + flushDelayNanos - System.nanoTime();
+        if (left <= 0)
+            return false;
+        LockSupport.parkNanos(Math.min(left, pollNanos));
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package net.defraine.wstcp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// counts values in power-of-two buckets, allocated up front; bucket k holds the values up to 2^k,
+// larger values are counted in the last bucket
+public class Histogram {
+    protected final LongAdder[] buckets;
+    protected final LongAdder count = new LongAdder();
+    protected final LongAdder sum = new LongAdder();
+
+    public Histogram(int bucketCount) {
+        buckets = new LongAdder[bucketCount];
+        for (int i = 0; i < bucketCount; ++i)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long value) {
+        int k = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        buckets[Math.min(k, buckets.length - 1)].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    public int getBucketCount() {
+        return buckets.length;
+    }
+
+    // the upper bound of bucket k
+    public static long upperBound(int k) {
+        return 1L << k;
+    }
+
+    public long getBucket(int k) {
+        return buckets[k].sum();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    // an upper bound of the given fraction of the values, 0 when there are none
+    public long percentile(double fraction) {
+        long total = getCount();
+        if (total == 0)
+            return 0;
+        long rank = (long)Math.ceil(fraction * total);
+        long seen = 0;
+        for (int k = 0; k < buckets.length; ++k) {
+            seen += buckets[k].sum();
+            if (seen >= rank)
+                return upperBound(k);
+        }
+        return upperBound(buckets.length - 1);
+    }
+}
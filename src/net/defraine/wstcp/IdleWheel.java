@@ -0,0 +1,211 @@
+package net.defraine.wstcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.MessageHandler;
+import javax.websocket.PongMessage;
+import javax.websocket.Session;
+
+// one thread that watches the activity of many sessions: it pings a session that was quiet for
+// its ping interval, and expires one that was idle beyond its idle limit, or that neither answered
+// a ping nor moved data within another interval; every session sits in the slot of a hashed wheel
+// for its next deadline, noting activity only writes a timestamp, and when the slot comes up a
+// session that was active meanwhile moves on to its new deadline
+public class IdleWheel implements Runnable {
+    protected static final long tickNanos = TimeUnit.MILLISECONDS.toNanos(250);
+    // a deadline further away takes a turn of the wheel in between
+    protected static final int slotCount = 512;
+    // pings and expiries that wait for a stalled network hold a task thread; when all are busy
+    // and the queue is full, the wheel runs the next one itself and its ticks fall behind
+    protected static final int taskThreads = 4;
+    protected static final int taskQueue = 1024;
+
+    // a session on the wheel, created when it opens
+    public abstract static class Watch {
+        protected final Session session;
+        protected final long pingNanos;
+        protected final long idleNanos;
+        protected volatile long lastActive = System.nanoTime();
+        protected volatile long lastPong = lastActive;
+        protected volatile boolean cancelled = false;
+        // on the wheel thread
+        protected long pingSent = lastActive;
+        protected boolean awaitingPong = false;
+
+        // pings after pingNanos without data, expires after idleNanos without data; 0 for neither
+        protected Watch(Session session, long pingNanos, long idleNanos) {
+            this.session = session;
+            this.pingNanos = pingNanos;
+            this.idleNanos = idleNanos;
+            if (pingNanos > 0) {
+                session.addMessageHandler(PongMessage.class, new MessageHandler.Whole<PongMessage>() {
+                    @Override
+                    public void onMessage(PongMessage pong) {
+                        lastPong = System.nanoTime();
+                    }
+                });
+            }
+        }
+
+        // data went either way, called on any thread
+        public void active() {
+            lastActive = System.nanoTime();
+        }
+
+        // the session closed, the wheel drops it when its slot comes up
+        public void cancel() {
+            cancelled = true;
+        }
+
+        protected void ping() {
+            try {
+                session.getBasicRemote().sendPing(ByteBuffer.allocate(0));
+            } catch (IOException | IllegalStateException e) {
+                // closing, or the pong does not come
+            }
+        }
+
+        // idle when idle beyond the limit, else the other side is gone; called off the wheel thread
+        protected abstract void expired(boolean idle);
+    }
+
+    protected final String name;
+    protected final List<List<Watch>> slots = new ArrayList<>(slotCount);
+    protected final long start = System.nanoTime();
+    // the last tick that was taken out of its slot, guarded by this
+    protected long tick = 0;
+    protected final Thread thread;
+    // pings and expiries, which may wait for the websocket
+    protected final ExecutorService tasks;
+
+    public IdleWheel(String name) {
+        this.name = name;
+        for (int i = 0; i < slotCount; ++i)
+            slots.add(new ArrayList<Watch>());
+        tasks = new ThreadPoolExecutor(taskThreads, taskThreads, 0, TimeUnit.NANOSECONDS,
+                                       new ArrayBlockingQueue<Runnable>(taskQueue), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, IdleWheel.this.name + "-task");
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // starts watching, unless the watch neither pings nor expires
+    public void add(Watch watch) {
+        if (watch.pingNanos == 0 && watch.idleNanos == 0)
+            return;
+        long first = watch.lastActive + (watch.pingNanos == 0 ? watch.idleNanos
+                                         : watch.idleNanos == 0 ? watch.pingNanos : Math.min(watch.pingNanos, watch.idleNanos));
+        schedule(watch, first);
+    }
+
+    protected synchronized void schedule(Watch watch, long deadline) {
+        long t = Math.max(tick + 1, (deadline - start + tickNanos - 1) / tickNanos);
+        slots.get((int)(t % slotCount)).add(watch);
+    }
+
+    // the later of two nanoTime values
+    protected static long later(long a, long b) {
+        return a - b > 0 ? a : b;
+    }
+
+    protected static long earlier(long a, long b) {
+        return a - b < 0 ? a : b;
+    }
+
+    protected void expire(final Watch watch, final boolean idle) {
+        watch.cancelled = true;
+        tasks.execute(new Runnable() {
+            @Override
+            public void run() {
+                watch.expired(idle);
+            }
+        });
+    }
+
+    protected void ping(final Watch watch) {
+        tasks.execute(new Runnable() {
+            @Override
+            public void run() {
+                watch.ping();
+            }
+        });
+    }
+
+    // the slot of watch came up, it may not be due yet
+    protected void check(Watch watch, long now) {
+        if (watch.cancelled)
+            return;
+        long last = watch.lastActive;
+        if (watch.idleNanos > 0 && now - last >= watch.idleNanos) {
+            expire(watch, true);
+            return;
+        }
+        long deadline = watch.idleNanos > 0 ? last + watch.idleNanos : 0;
+        if (watch.pingNanos > 0) {
+            if (watch.awaitingPong && later(watch.lastPong, last) - watch.pingSent >= 0)
+                watch.awaitingPong = false;
+            if (watch.awaitingPong && now - watch.pingSent >= watch.pingNanos) {
+                expire(watch, false);
+                return;
+            }
+            if (!watch.awaitingPong && now - later(last, watch.pingSent) >= watch.pingNanos) {
+                watch.pingSent = now;
+                watch.awaitingPong = true;
+                ping(watch);
+            }
+            long next = watch.awaitingPong ? watch.pingSent + watch.pingNanos : later(last, watch.pingSent) + watch.pingNanos;
+            deadline = watch.idleNanos > 0 ? earlier(deadline, next) : next;
+        }
+        schedule(watch, deadline);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long next;
+            synchronized (this) {
+                next = start + (tick + 1) * tickNanos;
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    // closed
+                    return;
+                }
+            }
+            List<Watch> due;
+            synchronized (this) {
+                ++tick;
+                int slot = (int)(tick % slotCount);
+                due = slots.get(slot);
+                if (due.isEmpty())
+                    continue;
+                slots.set(slot, new ArrayList<Watch>());
+            }
+            long now = System.nanoTime();
+            for (Watch watch : due)
+                check(watch, now);
+        }
+    }
+
+    public void close() {
+        thread.interrupt();
+        tasks.shutdownNow();
+    }
+}
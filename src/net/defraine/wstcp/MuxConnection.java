@@ -0,0 +1,451 @@
+package net.defraine.wstcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.websocket.CloseReason;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+// carries many streams over one websocket session; every binary message is one frame,
+// made of a type byte, the stream id (4 bytes) and a payload
+public abstract class MuxConnection {
+    public static final byte OPEN = 1;      // payload: the path of the endpoint to connect to
+    public static final byte DATA = 2;      // payload: the data
+    public static final byte FIN = 3;       // no more data from the sender on this stream
+    public static final byte RESET = 4;     // payload: the reason, the stream is aborted
+    public static final byte WINDOW = 5;    // payload: int, the number of bytes the receiver consumed
+
+    public static final int headerSize = 5;
+    public static final int maxData = 32*1024;
+    // bytes a sender may have outstanding per stream, before the receiver gives credit
+    public static final int initialWindow = 256*1024;
+
+    protected static final ByteBuffer finMarker = ByteBuffer.allocate(0);
+
+    protected final Session session;
+    protected final Scrambler sendScrambler;
+    protected final Scrambler recvScrambler;
+    protected final boolean virtualThreads;
+    protected final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+    // frames are scrambled in the order they are sent
+    protected final Object sendLock = new Object();
+    protected final AtomicInteger nextId = new AtomicInteger(1);
+    protected TunnelMetrics metrics;
+    protected boolean client;
+    protected TokenBucket[] sendLimits = new TokenBucket[0];
+    protected TokenBucket[] receiveLimits = new TokenBucket[0];
+
+    protected MuxConnection(Session session, Scrambler sendScrambler, Scrambler recvScrambler, boolean virtualThreads) {
+        this.session = session;
+        this.sendScrambler = sendScrambler;
+        this.recvScrambler = recvScrambler;
+        this.virtualThreads = virtualThreads;
+        session.setMaxBinaryMessageBufferSize(headerSize + maxData);
+        session.addMessageHandler(ByteBuffer.class, new MessageHandler.Whole<ByteBuffer>() {
+            @Override
+            public void onMessage(ByteBuffer msg) {
+                received(msg);
+            }
+        });
+    }
+
+    // count the data of the streams; on the client side, sent data goes up
+    public void setMetrics(TunnelMetrics metrics, boolean client) {
+        this.metrics = metrics;
+        this.client = client;
+    }
+
+    // limit the data that the streams send and write out; must be set before opening streams
+    public void setRateLimits(TokenBucket[] sendLimits, TokenBucket[] receiveLimits) {
+        this.sendLimits = sendLimits;
+        this.receiveLimits = receiveLimits;
+    }
+
+    protected void countSent(int length) {
+        if (metrics == null)
+            return;
+        if (client)
+            metrics.frameUp(length);
+        else
+            metrics.frameDown(length);
+    }
+
+    protected void countReceived(int length) {
+        if (metrics == null)
+            return;
+        if (client)
+            metrics.frameDown(length);
+        else
+            metrics.frameUp(length);
+    }
+
+    protected abstract void log(String message);
+
+    // the other side opened a stream, it should be registered or reset
+    protected abstract void opened(int id, String path);
+
+    // a frame went either way
+    protected void active() {
+    }
+
+    protected void send(byte type, int id, ByteBuffer payload) throws IOException {
+        int length = payload != null ? payload.remaining() : 0;
+        ByteBuffer msg = BufferPool.shared.acquire(headerSize + length);
+        try {
+            msg.put(type).putInt(id);
+            if (payload != null)
+                msg.put(payload);
+            msg.flip();
+            synchronized (sendLock) {
+                if (sendScrambler != null)
+                    sendScrambler.scramble(msg);
+                session.getBasicRemote().sendBinary(msg);
+            }
+            active();
+        } finally {
+            BufferPool.shared.release(msg);
+        }
+    }
+
+    protected void send(byte type, int id, String payload) throws IOException {
+        send(type, id, StandardCharsets.UTF_8.encode(payload));
+    }
+
+    public void protocolError(String reason) {
+        log("closing for protocol error: " + reason);
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.PROTOCOL_ERROR, reason));
+        } catch (IOException e) {
+            log("IO error on websocket: " + e.getMessage());
+        }
+    }
+
+    protected void received(ByteBuffer msg) {
+        active();
+        if (recvScrambler != null)
+            msg = recvScrambler.scramble(msg);
+        if (msg.remaining() < headerSize) {
+            protocolError("short frame");
+            return;
+        }
+        byte type = msg.get();
+        int id = msg.getInt();
+        if (type == OPEN) {
+            opened(id, StandardCharsets.UTF_8.decode(msg).toString());
+            return;
+        }
+        Stream stream = streams.get(id);
+        if (stream == null) {
+            // frames that were underway when the stream was reset
+            return;
+        }
+        switch (type) {
+        case DATA:
+            stream.received(msg);
+            break;
+        case FIN:
+            stream.received(finMarker);
+            break;
+        case RESET:
+            stream.remoteReset(StandardCharsets.UTF_8.decode(msg).toString());
+            break;
+        case WINDOW:
+            if (msg.remaining() != 4) {
+                protocolError("invalid window frame");
+                return;
+            }
+            stream.credit(msg.getInt());
+            break;
+        default:
+            protocolError("unknown frame type " + type);
+        }
+    }
+
+    // a new stream, or null if the id is in use
+    public Stream register(int id) {
+        Stream stream = new Stream(id);
+        if (streams.putIfAbsent(id, stream) != null)
+            return null;
+        return stream;
+    }
+
+    // the streams that are registered and not yet cleaned up
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    // open a stream to the endpoint at path, attach it to start relaying
+    public Stream open(String path) throws IOException {
+        Stream stream = register(nextId.getAndIncrement());
+        if (stream == null)
+            throw new IOException("stream ids exhausted");
+        send(OPEN, stream.getId(), path);
+        return stream;
+    }
+
+    // the session is gone, abort all streams
+    public void closeAll() {
+        for (Stream stream : streams.values())
+            stream.remoteReset("connection closed");
+    }
+
+    public class Stream {
+        protected final int id;
+        protected ReadableByteChannel in;
+        protected WritableByteChannel out;
+        protected Thread reader;
+        protected Thread writer;
+        // received data, until the writer puts it out
+        protected final LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+        protected final AtomicInteger queued = new AtomicInteger(0);
+        protected final CountDownLatch done = new CountDownLatch(1);
+
+        // guarded by this
+        protected int sendWindow = initialWindow;
+        protected boolean inputDone = false;
+        protected boolean outputDone = false;
+        protected boolean closed = false;
+        protected String resetReason;
+        protected Runnable released;
+
+        protected Stream(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        // start relaying between the stream and the channels; data received before is kept
+        public void attach(ReadableByteChannel in, WritableByteChannel out) {
+            attach(in, out, null);
+        }
+
+        // the same, and runs released once the channels are closed
+        public void attach(ReadableByteChannel in, WritableByteChannel out, Runnable released) {
+            synchronized (this) {
+                this.in = in;
+                this.out = out;
+                this.released = released;
+                if (closed) {
+                    // reset while connecting
+                    closeChannels();
+                    return;
+                }
+                reader = Threads.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        readLoop();
+                    }
+                }, virtualThreads);
+                writer = Threads.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeLoop();
+                    }
+                }, virtualThreads);
+            }
+            reader.start();
+            writer.start();
+        }
+
+        protected void readLoop() {
+            ByteBuffer buf = BufferPool.shared.acquire(maxData);
+            try {
+                while (true) {
+                    int allowed;
+                    synchronized (this) {
+                        while (sendWindow == 0 && !closed)
+                            wait();
+                        if (closed)
+                            return;
+                        allowed = Math.min(sendWindow, maxData);
+                    }
+                    buf.clear();
+                    buf.limit(allowed);
+                    int bytesRead = in.read(buf);
+                    if (bytesRead == -1) {
+                        send(FIN, id, (ByteBuffer)null);
+                        inputFinished();
+                        return;
+                    }
+                    buf.flip();
+                    synchronized (this) {
+                        sendWindow -= bytesRead;
+                    }
+                    TokenBucket.acquire(bytesRead, sendLimits);
+                    countSent(bytesRead);
+                    send(DATA, id, buf);
+                }
+            } catch (InterruptedException e) {
+                // reset
+            } catch (IOException e) {
+                reset("IO error reading: " + e.getMessage());
+            } finally {
+                BufferPool.shared.release(buf);
+            }
+        }
+
+        protected void writeLoop() {
+            int credit = 0;
+            try {
+                while (true) {
+                    ByteBuffer data = queue.take();
+                    if (data == finMarker) {
+                        if (out instanceof SocketChannel)
+                            ((SocketChannel)out).shutdownOutput();
+                        else
+                            out.close();
+                        outputFinished();
+                        return;
+                    }
+                    int length = data.remaining();
+                    TokenBucket.acquire(length, receiveLimits);
+                    while (data.hasRemaining())
+                        out.write(data);
+                    BufferPool.shared.release(data);
+                    queued.addAndGet(-length);
+                    credit += length;
+                    // give credit in batches, or when caught up
+                    if (credit >= initialWindow / 4 || queue.isEmpty()) {
+                        ByteBuffer payload = ByteBuffer.allocate(4).putInt(0, credit);
+                        send(WINDOW, id, payload);
+                        credit = 0;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // reset
+            } catch (IOException e) {
+                reset("IO error writing: " + e.getMessage());
+            }
+        }
+
+        // called from the container thread
+        protected void received(ByteBuffer payload) {
+            if (payload == finMarker) {
+                queue.add(finMarker);
+                return;
+            }
+            int length = payload.remaining();
+            countReceived(length);
+            if (queued.addAndGet(length) > initialWindow) {
+                reset("flow control window exceeded");
+                return;
+            }
+            ByteBuffer copy = BufferPool.shared.acquire(length);
+            copy.put(payload);
+            copy.flip();
+            queue.add(copy);
+        }
+
+        // the peer never gives back more than was sent, so the window stays within initialWindow
+        protected void credit(int bytes) {
+            synchronized (this) {
+                if (bytes > 0 && bytes <= initialWindow - sendWindow) {
+                    sendWindow += bytes;
+                    notifyAll();
+                    return;
+                }
+            }
+            reset("invalid window credit " + bytes);
+        }
+
+        protected void inputFinished() {
+            synchronized (this) {
+                inputDone = true;
+                if (!outputDone)
+                    return;
+                closed = true;
+            }
+            cleanup();
+        }
+
+        protected void outputFinished() {
+            synchronized (this) {
+                outputDone = true;
+                if (!inputDone)
+                    return;
+                closed = true;
+            }
+            cleanup();
+        }
+
+        // abort the stream from this side
+        public void reset(String reason) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                resetReason = reason;
+                notifyAll();
+            }
+            log("stream " + id + ": reset: " + reason);
+            try {
+                send(RESET, id, reason);
+            } catch (IOException e) {
+                log("stream " + id + ": IO error sending reset: " + e.getMessage());
+            }
+            cleanup();
+        }
+
+        protected void remoteReset(String reason) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                resetReason = reason;
+                notifyAll();
+            }
+            log("stream " + id + ": reset by peer: " + reason);
+            cleanup();
+        }
+
+        protected void cleanup() {
+            streams.remove(id);
+            if (writer != null && Thread.currentThread() != writer)
+                writer.interrupt();
+            synchronized (this) {
+                closeChannels();
+            }
+            ByteBuffer data;
+            while ((data = queue.poll()) != null) {
+                if (data != finMarker)
+                    BufferPool.shared.release(data);
+            }
+            done.countDown();
+        }
+
+        // guarded by this
+        protected void closeChannels() {
+            try {
+                if (in != null)
+                    in.close();
+                if (out != null && out != in)
+                    out.close();
+            } catch (IOException e) {
+                log("stream " + id + ": IO error while closing: " + e.getMessage());
+            }
+            if (released != null) {
+                released.run();
+                released = null;
+            }
+        }
+
+        public void waitUntilDone() throws InterruptedException {
+            done.await();
+        }
+
+        // the reason when the stream was aborted, or null
+        public synchronized String getResetReason() {
+            return resetReason;
+        }
+    }
+}
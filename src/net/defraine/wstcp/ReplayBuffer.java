@@ -0,0 +1,108 @@
+package net.defraine.wstcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// the data sent in one direction of a resumable tunnel that the other side did not acknowledge
+// yet, to send again after a reconnect; offsets count all data sent in that direction
+public class ReplayBuffer {
+    // the client asks for a resumable tunnel with resume=new, and resumes one with resume=<token>
+    // and offset=<bytes received>; the server confirms that it supports it with a header, and on
+    // every session of the tunnel first sends the text message "session <token> <grace seconds>
+    // <bytes received>"; both sides acknowledge what they received with "ack <bytes>" or, after
+    // the end of stream, "ack <bytes> end"
+    public static final String queryParam = "resume";
+    public static final String offsetParam = "offset";
+    public static final String newTunnel = "new";
+    public static final String confirmHeader = "X-WSTcp-Resume";
+    // received bytes between acknowledgements
+    public static final int ackInterval = 64*1024;
+
+    protected final byte[] data;
+
+    // guarded by this
+    protected long start = 0;           // offset of the oldest byte held
+    protected long end = 0;             // offset after the newest byte
+    protected boolean finished = false; // the end of stream follows the data
+    protected boolean endAcked = false;
+    protected boolean closed = false;
+
+    public ReplayBuffer(int capacity) {
+        data = new byte[capacity];
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    // waits until length bytes can be appended; false when closed meanwhile
+    public synchronized boolean awaitRoom(int length) throws InterruptedException {
+        while (data.length - (end - start) < length && !closed)
+            wait();
+        return !closed;
+    }
+
+    // adds the remaining bytes of src, for which there must be room
+    public synchronized void append(ByteBuffer src) {
+        if (data.length - (end - start) < src.remaining())
+            throw new IllegalStateException("no room in replay buffer");
+        while (src.hasRemaining()) {
+            int pos = (int)(end % data.length);
+            int n = Math.min(src.remaining(), data.length - pos);
+            src.get(data, pos, n);
+            end += n;
+        }
+    }
+
+    public synchronized void finish() {
+        finished = true;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    // the other side received everything up to offset, and the end of stream when end;
+    // false when that was never sent
+    public synchronized boolean acked(long offset, boolean end) {
+        if (offset > this.end || (end && (!finished || offset != this.end)))
+            return false;
+        if (offset > start) {
+            start = offset;
+            notifyAll();
+        }
+        if (end)
+            endAcked = true;
+        return true;
+    }
+
+    // whether the other side received everything, up to the end of stream
+    public synchronized boolean isDone() {
+        return endAcked;
+    }
+
+    // copies of the data from offset on, in chunks of at most max bytes; null when that data is
+    // no longer held or was never sent
+    public synchronized List<ByteBuffer> from(long offset, int max) {
+        if (offset < start || offset > end)
+            return null;
+        List<ByteBuffer> chunks = new ArrayList<>();
+        while (offset < end) {
+            int pos = (int)(offset % data.length);
+            int n = (int)Math.min(Math.min(end - offset, max), data.length - pos);
+            ByteBuffer chunk = ByteBuffer.allocate(n);
+            chunk.put(data, pos, n);
+            chunk.flip();
+            chunks.add(chunk);
+            offset += n;
+        }
+        return chunks;
+    }
+
+    // releases a waiting awaitRoom
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -1,30 +1,97 @@
 package net.defraine.wstcp;
 
-import java.util.Random;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class Scrambler {
 
-    protected final Random rand;
+    // the key is the stream of 256 byte blocks that java.util.Random.nextBytes gives for the seed;
+    // nextBytes uses whole ints, so generating several blocks at once gives the same stream
+    protected static final int keyBlocks = 16;
+
+    // the generator of java.util.Random, as specified in its documentation
+    protected static final long multiplier = 0x5DEECE66DL;
+    protected static final long addend = 0xBL;
+    protected static final long mask = (1L << 48) - 1;
+
+    // xor eight bytes at a time, the byte order does not matter as long as both sides use the same
+    protected static final VarHandle arrayLongs = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    protected static final VarHandle bufferLongs = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    // nextBytes puts the low byte of each int first
+    protected static final VarHandle arrayIntsLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    protected long seed;
     protected final byte[] key;
     protected int keyPos;
 
     public Scrambler(long seed) {
-        rand = new Random(seed);
-        key = new byte[256];
+        this.seed = (seed ^ multiplier) & mask;
+        key = new byte[256 * keyBlocks];
         renewKey();
     }
 
+    // same as Random.nextBytes(key), without the atomic update of the seed for every int
     protected void renewKey() {
-        rand.nextBytes(key);
+        long s = seed;
+        for (int i = 0; i < key.length; i += 4) {
+            s = (s * multiplier + addend) & mask;
+            arrayIntsLE.set(key, i, (int)(s >>> 16));
+        }
+        seed = s;
         keyPos = 0;
     }
 
     // scramble is both encrypt and decrypt
     public void scramble(byte[] buf, int offset, int length) {
-        for (int i = offset; i < offset+length; ++i) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (keyPos == key.length)
+                renewKey();
+            int n = Math.min(end - i, key.length - keyPos);
+            int j = 0;
+            for (; j <= n - 8; j += 8) {
+                long word = (long)arrayLongs.get(buf, i + j) ^ (long)arrayLongs.get(key, keyPos + j);
+                arrayLongs.set(buf, i + j, word);
+            }
+            for (; j < n; ++j)
+                buf[i + j] ^= key[keyPos + j];
+            i += n;
+            keyPos += n;
+        }
+    }
+
+    // scramble the remaining bytes of buf in place, without moving its position;
+    // a read-only buffer is copied first, the result is the buffer that holds the scrambled bytes
+    public ByteBuffer scramble(ByteBuffer buf) {
+        if (buf.isReadOnly()) {
+            ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+            copy.put(buf.duplicate());
+            copy.flip();
+            buf = copy;
+        }
+        if (buf.hasArray()) {
+            scramble(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return buf;
+        }
+        int end = buf.limit();
+        int i = buf.position();
+        while (i < end) {
             if (keyPos == key.length)
                 renewKey();
-            buf[i] ^= key[keyPos++];
+            int n = Math.min(end - i, key.length - keyPos);
+            int j = 0;
+            for (; j <= n - 8; j += 8) {
+                long word = (long)bufferLongs.get(buf, i + j) ^ (long)arrayLongs.get(key, keyPos + j);
+                bufferLongs.set(buf, i + j, word);
+            }
+            for (; j < n; ++j)
+                buf.put(i + j, (byte)(buf.get(i + j) ^ key[keyPos + j]));
+            i += n;
+            keyPos += n;
         }
+        return buf;
     }
 }
@@ -0,0 +1,45 @@
+package net.defraine.wstcp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// creates relay threads, optionally virtual threads when the JVM supports them (Java 21 or later)
+public class Threads {
+    // looked up on first use, so that a process without virtual threads skips the reflection
+    private static class Virtual {
+        static final Object builder;
+        static final Method unstarted;
+
+        static {
+            Object b = null;
+            Method method = null;
+            try {
+                b = Thread.class.getMethod("ofVirtual").invoke(null);
+                method = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            } catch (ReflectiveOperationException e) {
+                b = null;
+                method = null;
+            }
+            builder = b;
+            unstarted = method;
+        }
+    }
+
+    public static boolean isVirtualSupported() {
+        return Virtual.builder != null;
+    }
+
+    // creates an unstarted thread, falls back to a platform thread if virtual threads are unsupported
+    public static Thread newThread(Runnable task, boolean virtual) {
+        if (virtual && Virtual.builder != null) {
+            try {
+                return (Thread)Virtual.unstarted.invoke(Virtual.builder, task);
+            } catch (IllegalAccessException e) {
+                throw new AssertionError("Thread.Builder should be accessible", e);
+            } catch (InvocationTargetException e) {
+                throw new AssertionError("Thread.Builder.unstarted should not fail", e.getCause());
+            }
+        }
+        return new Thread(task);
+    }
+}
@@ -0,0 +1,69 @@
+package net.defraine.wstcp;
+
+import java.util.concurrent.TimeUnit;
+
+// limits a flow of bytes to a rate, with bursts of up to a tenth of a second; a caller takes the
+// tokens for what it is about to send right away, going into debt, and waits until the debt is
+// paid off, so a limited flow sleeps rather than polls
+public class TokenBucket {
+    protected final long bytesPerSecond;
+    protected final long burst;
+
+    // guarded by this
+    protected long tokens;
+    protected long last = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burst = Math.max(bytesPerSecond / 10, 4096);
+        this.tokens = burst;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // bytes per second, with an optional suffix k or m
+    public static int parseRate(String value) throws IllegalArgumentException {
+        int unit = 1;
+        if (value.endsWith("k"))
+            unit = 1024;
+        else if (value.endsWith("m"))
+            unit = 1024*1024;
+        if (unit != 1)
+            value = value.substring(0, value.length() - 1);
+        int rate = Integer.parseInt(value);
+        if (rate < 0 || rate > Integer.MAX_VALUE / unit)
+            throw new IllegalArgumentException("rate out of range");
+        return rate * unit;
+    }
+
+    // takes the tokens for length bytes, returns how long to wait before sending them
+    public synchronized long reserve(int length) {
+        long now = System.nanoTime();
+        long elapsed = now - last;
+        // whole tokens only, the remainder of the elapsed time carries over
+        long added = elapsed >= 1000000000L ? elapsed / 1000000000L * bytesPerSecond + (elapsed % 1000000000L) * bytesPerSecond / 1000000000L
+                                            : elapsed * bytesPerSecond / 1000000000L;
+        if (added > 0) {
+            last = tokens + added >= burst ? now : last + added * 1000000000L / bytesPerSecond;
+            tokens = Math.min(burst, tokens + added);
+        }
+        tokens -= length;
+        return tokens >= 0 ? 0 : -tokens * 1000000000L / bytesPerSecond;
+    }
+
+    // the longest wait of the buckets, after taking length bytes from each
+    public static long reserve(int length, TokenBucket[] buckets) {
+        long wait = 0;
+        for (TokenBucket bucket : buckets)
+            wait = Math.max(wait, bucket.reserve(length));
+        return wait;
+    }
+
+    public static void acquire(int length, TokenBucket[] buckets) throws InterruptedException {
+        long wait = reserve(length, buckets);
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
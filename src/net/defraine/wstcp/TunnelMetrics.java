@@ -0,0 +1,215 @@
+package net.defraine.wstcp;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// counters of the tunnels of one endpoint, or of one client; up is the direction from the
+// websocket client to the TCP destination, down the other one
+public class TunnelMetrics implements TunnelMetricsMBean {
+    protected final LongAdder sessions = new LongAdder();
+    protected final LongAdder activeSessions = new LongAdder();
+    protected final LongAdder bytesUp = new LongAdder();
+    protected final LongAdder bytesDown = new LongAdder();
+    protected final Histogram framesUp = new Histogram(21);         // bytes, up to 1 MiB
+    protected final Histogram framesDown = new Histogram(21);
+    protected final Histogram connectTime = new Histogram(26);      // microseconds, up to 33 s
+    protected final LongAdder connectFailures = new LongAdder();
+    protected final Histogram sessionTime = new Histogram(28);      // milliseconds, up to 37 h
+    protected final LongAdder errors = new LongAdder();
+    protected final ConcurrentHashMap<Integer, LongAdder> closeCodes = new ConcurrentHashMap<>();
+
+    public long sessionOpened() {
+        sessions.increment();
+        activeSessions.increment();
+        return System.nanoTime();
+    }
+
+    public void sessionClosed(long openedNanos, int closeCode) {
+        activeSessions.decrement();
+        sessionTime.record((System.nanoTime() - openedNanos) / 1000000);
+        LongAdder count = closeCodes.get(closeCode);
+        if (count == null)
+            count = closeCodes.computeIfAbsent(closeCode, c -> new LongAdder());
+        count.increment();
+    }
+
+    public void connected(long startNanos) {
+        connectTime.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public void connectFailed() {
+        connectFailures.increment();
+    }
+
+    public void frameUp(int length) {
+        bytesUp.add(length);
+        framesUp.record(length);
+    }
+
+    public void frameDown(int length) {
+        bytesDown.add(length);
+        framesDown.record(length);
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    @Override
+    public long getSessions() {
+        return sessions.sum();
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getBytesUp() {
+        return bytesUp.sum();
+    }
+
+    @Override
+    public long getBytesDown() {
+        return bytesDown.sum();
+    }
+
+    @Override
+    public long getFramesUp() {
+        return framesUp.getCount();
+    }
+
+    @Override
+    public long getFramesDown() {
+        return framesDown.getCount();
+    }
+
+    @Override
+    public long getFrameSizeUpP50() {
+        return framesUp.percentile(0.5);
+    }
+
+    @Override
+    public long getFrameSizeDownP50() {
+        return framesDown.percentile(0.5);
+    }
+
+    @Override
+    public long getConnectMicrosP50() {
+        return connectTime.percentile(0.5);
+    }
+
+    @Override
+    public long getConnectMicrosP99() {
+        return connectTime.percentile(0.99);
+    }
+
+    @Override
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    @Override
+    public long getSessionMillisP50() {
+        return sessionTime.percentile(0.5);
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public String getCloseCodes() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(closeCodes).entrySet()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(e.getKey()).append('=').append(e.getValue().sum());
+        }
+        return sb.toString();
+    }
+
+    // Prometheus text format, of the metrics by label value, e.g. by path
+
+    protected static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    protected static void header(PrintWriter out, String name, String type, String help) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+    }
+
+    protected static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long)value);
+        return Double.toString(value);
+    }
+
+    protected static void sample(PrintWriter out, String name, String labels, double value) {
+        out.print(name);
+        out.print('{');
+        out.print(labels);
+        out.print("} ");
+        out.println(number(value));
+    }
+
+    protected static void histogram(PrintWriter out, String name, String labels, Histogram h, double unit) {
+        long cumulative = 0;
+        for (int k = 0; k < h.getBucketCount() - 1; ++k) {
+            cumulative += h.getBucket(k);
+            sample(out, name + "_bucket", labels + ",le=\"" + number(Histogram.upperBound(k) * unit) + "\"", cumulative);
+        }
+        sample(out, name + "_bucket", labels + ",le=\"+Inf\"", h.getCount());
+        sample(out, name + "_sum", labels, h.getSum() * unit);
+        sample(out, name + "_count", labels, h.getCount());
+    }
+
+    public static void writePrometheus(PrintWriter out, String labelName, Map<String, TunnelMetrics> metrics) {
+        Map<String, String> labels = new TreeMap<>();
+        for (String value : metrics.keySet())
+            labels.put(value, labelName + "=\"" + escape(value) + "\"");
+
+        header(out, "wstcp_sessions_total", "counter", "WebSocket sessions opened.");
+        for (Map.Entry<String, String> l : labels.entrySet())
+            sample(out, "wstcp_sessions_total", l.getValue(), metrics.get(l.getKey()).getSessions());
+        header(out, "wstcp_sessions_active", "gauge", "WebSocket sessions open now.");
+        for (Map.Entry<String, String> l : labels.entrySet())
+            sample(out, "wstcp_sessions_active", l.getValue(), metrics.get(l.getKey()).getActiveSessions());
+        header(out, "wstcp_bytes_total", "counter", "Bytes relayed, up is towards the TCP destination.");
+        for (Map.Entry<String, String> l : labels.entrySet()) {
+            TunnelMetrics m = metrics.get(l.getKey());
+            sample(out, "wstcp_bytes_total", l.getValue() + ",direction=\"up\"", m.getBytesUp());
+            sample(out, "wstcp_bytes_total", l.getValue() + ",direction=\"down\"", m.getBytesDown());
+        }
+        header(out, "wstcp_frame_size_bytes", "histogram", "Sizes of the relayed WebSocket messages.");
+        for (Map.Entry<String, String> l : labels.entrySet()) {
+            TunnelMetrics m = metrics.get(l.getKey());
+            histogram(out, "wstcp_frame_size_bytes", l.getValue() + ",direction=\"up\"", m.framesUp, 1);
+            histogram(out, "wstcp_frame_size_bytes", l.getValue() + ",direction=\"down\"", m.framesDown, 1);
+        }
+        header(out, "wstcp_connect_seconds", "histogram", "Time to connect to the destination.");
+        for (Map.Entry<String, String> l : labels.entrySet())
+            histogram(out, "wstcp_connect_seconds", l.getValue(), metrics.get(l.getKey()).connectTime, 1e-6);
+        header(out, "wstcp_connect_failures_total", "counter", "Failed connects to the destination.");
+        for (Map.Entry<String, String> l : labels.entrySet())
+            sample(out, "wstcp_connect_failures_total", l.getValue(), metrics.get(l.getKey()).getConnectFailures());
+        header(out, "wstcp_session_seconds", "histogram", "Lifetime of the WebSocket sessions.");
+        for (Map.Entry<String, String> l : labels.entrySet())
+            histogram(out, "wstcp_session_seconds", l.getValue(), metrics.get(l.getKey()).sessionTime, 1e-3);
+        header(out, "wstcp_errors_total", "counter", "Tunnels that ended with an error.");
+        for (Map.Entry<String, String> l : labels.entrySet())
+            sample(out, "wstcp_errors_total", l.getValue(), metrics.get(l.getKey()).getErrors());
+        header(out, "wstcp_closes_total", "counter", "Closed WebSocket sessions, by close code.");
+        for (Map.Entry<String, String> l : labels.entrySet()) {
+            TunnelMetrics m = metrics.get(l.getKey());
+            for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(m.closeCodes).entrySet())
+                sample(out, "wstcp_closes_total", l.getValue() + ",code=\"" + e.getKey() + "\"", e.getValue().sum());
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net.defraine.wstcp;
+
+// the JMX view of TunnelMetrics; sizes in bytes, percentiles are bucket upper bounds
+public interface TunnelMetricsMBean {
+    long getSessions();
+    long getActiveSessions();
+    long getBytesUp();
+    long getBytesDown();
+    long getFramesUp();
+    long getFramesDown();
+    long getFrameSizeUpP50();
+    long getFrameSizeDownP50();
+    long getConnectMicrosP50();
+    long getConnectMicrosP99();
+    long getConnectFailures();
+    long getSessionMillisP50();
+    long getErrors();
+    String getCloseCodes();
+}
@@ -1,25 +1,43 @@
 package net.defraine.wstcp.client;
 
+import net.defraine.wstcp.BufferPool;
+import net.defraine.wstcp.Compressor;
+import net.defraine.wstcp.Decompressor;
+import net.defraine.wstcp.FrameSizer;
+import net.defraine.wstcp.IdleWheel;
 import net.defraine.wstcp.Scrambler;
+import net.defraine.wstcp.Threads;
+import net.defraine.wstcp.TokenBucket;
+import net.defraine.wstcp.TunnelMetrics;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
 import javax.websocket.ContainerProvider;
 import javax.websocket.Endpoint;
 import javax.websocket.EndpointConfig;
+import javax.websocket.HandshakeResponse;
 import javax.websocket.MessageHandler;
-import javax.websocket.RemoteEndpoint;
 import javax.websocket.Session;
-import javax.websocket.WebSocketContainer;
 
 public class WSTcpClient extends Endpoint {
     protected PrintStream log;
@@ -30,11 +48,50 @@ public class WSTcpClient extends Endpoint {
     protected CountDownLatch toFinish = new CountDownLatch(1);
     protected Scrambler sendScrambler;
     protected Scrambler recvScrambler;
+    protected boolean virtualThreads = false;
+    protected Thread readerThread;
+    protected FrameSizer sizer = new FrameSizer(FrameSizer.defaultMinFrame, FrameSizer.defaultMaxFrame, 0);
+    // the metrics of all clients in this process
+    public static final TunnelMetrics metrics = new TunnelMetrics();
+    // the rate limits of all clients in this process, see setRate
+    protected static TokenBucket[] upLimits = new TokenBucket[0];
+    protected static TokenBucket[] downLimits = new TokenBucket[0];
+    // the pings of all clients in this process, see setPing
+    protected static IdleWheel idleWheel;
+    protected static long pingNanos = 0;
+    protected IdleWheel.Watch watch;
+    protected long openedNanos;
+    protected boolean compress = false;
+    protected volatile boolean compressionConfirmed = false;
+    protected Compressor compressor;
+    protected Decompressor decompressor;
+
+    // what the server sent before attach, guarded by this
+    protected ByteArrayOutputStream early = new ByteArrayOutputStream();
+    protected boolean earlyEof = false;
+    protected volatile boolean discarded = false;
+    protected static final int maxEarly = 64*1024;
+    // report the delay to the first byte after attach, guarded by this
+    protected String traceName;
+    protected long traceStart;
+
+    // for file streams, such as stdin and stdout, their channels: the reader reads into a
+    // direct buffer, and the output of a message goes out with one gathering write
+    protected FileChannel inChannel;
+    protected FileChannel outChannel;
+    // guarded by this
+    protected final List<ByteBuffer> pending = new ArrayList<>();
+    protected int pendingBytes = 0;
+    protected static final int maxPending = BufferPool.maxSize;
 
     public WSTcpClient(PrintStream log, InputStream is, OutputStream os, Long optKey) {
+        this(log, optKey);
+        setStreams(is, os);
+    }
+
+    // a client to connect ahead of use, see attach
+    public WSTcpClient(PrintStream log, Long optKey) {
         this.log = log;
-        this.is = is;
-        this.os = os;
         if (optKey != null) {
             long key = optKey.longValue();
             sendScrambler = new Scrambler(key);
@@ -42,71 +99,375 @@ public class WSTcpClient extends Endpoint {
         }
     }
 
-    protected Thread reader = new Thread() {
-        public static final int bufferSize = 4*1024;
+    // guarded by this, or before connecting
+    protected void setStreams(InputStream is, OutputStream os) {
+        this.is = is;
+        this.os = os;
+        if (is instanceof FileInputStream)
+            inChannel = ((FileInputStream)is).getChannel();
+        if (os instanceof FileOutputStream)
+            outChannel = ((FileOutputStream)os).getChannel();
+    }
+
+    // run the reader on a virtual thread, if supported; must be set before connecting
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    // frames grow up to maxFrame under sustained input, and wait at most flushDelayNanos for more;
+    // must be set before connecting
+    public void setFrameSizing(int maxFrame, long flushDelayNanos) {
+        sizer = new FrameSizer(FrameSizer.defaultMinFrame, Math.max(FrameSizer.defaultMinFrame, maxFrame), flushDelayNanos);
+    }
+
+    // limit all clients in this process to bytesPerSecond in each direction, 0 for no limit;
+    // must be set before connecting
+    public static void setRate(int bytesPerSecond) {
+        upLimits = bytesPerSecond > 0 ? new TokenBucket[] { new TokenBucket(bytesPerSecond) } : new TokenBucket[0];
+        downLimits = bytesPerSecond > 0 ? new TokenBucket[] { new TokenBucket(bytesPerSecond) } : new TokenBucket[0];
+    }
+
+    // ping the server after pingNanos without data, 0 for no pings, and close a session when the
+    // server neither answers nor sends data for as long again; must be set before connecting
+    public static void setPing(long pingNanos) {
+        WSTcpClient.pingNanos = pingNanos;
+        if (pingNanos > 0 && idleWheel == null)
+            idleWheel = new IdleWheel("wstcp-idle");
+    }
+
+    // puts session on the idle wheel, or returns null when not pinging
+    protected static IdleWheel.Watch watch(final PrintStream log, final Session session) {
+        if (pingNanos == 0)
+            return null;
+        IdleWheel.Watch w = new IdleWheel.Watch(session, pingNanos, 0) {
+            @Override
+            protected void expired(boolean idle) {
+                log.println("No answer to ping, closing the websocket");
+                try {
+                    session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "No pong"));
+                } catch (IOException e) {
+                    // closed already
+                }
+            }
+        };
+        idleWheel.add(w);
+        return w;
+    }
+
+    // data went either way
+    protected void active() {
+        IdleWheel.Watch w = watch;
+        if (w != null)
+            w.active();
+    }
+
+    // ask the server to compress, connect with newConfig and the uri from withCompression;
+    // must be set before connecting
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    // the config to connect with, it notes what the server confirmed, see afterResponse
+    public ClientEndpointConfig newConfig() {
+        return ClientEndpointConfig.Builder.create()
+            .configurator(new ClientEndpointConfig.Configurator() {
+                @Override
+                public void afterResponse(HandshakeResponse hr) {
+                    WSTcpClient.this.afterResponse(hr);
+                }
+            })
+            .build();
+    }
+
+    // called with the response to the handshake, before onOpen
+    protected void afterResponse(HandshakeResponse hr) {
+        List<String> values = hr.getHeaders().get(Compressor.confirmHeader);
+        compressionConfirmed = compress && values != null && values.contains(Compressor.method);
+    }
+
+    // sends the remaining bytes of data as one message, for the reader; scrambles data in place
+    protected void send(ByteBuffer data) throws IOException {
+        ByteBuffer msg = compressor != null ? compressor.compress(data) : data;
+        metrics.frameUp(msg.remaining());
+        active();
+        if (sendScrambler != null)
+            sendScrambler.scramble(msg);
+        try {
+            session.getBasicRemote().sendBinary(msg);
+        } finally {
+            if (msg != data)
+                BufferPool.shared.release(msg);
+        }
+    }
+
+    // end-of-stream, send empty message marker
+    protected void sendEnd() throws IOException {
+        session.getBasicRemote().sendBinary(ByteBuffer.allocate(0));
+    }
+
+    // whether the reader can still send
+    protected boolean isOpen() {
+        return session.isOpen();
+    }
+
+    // reads from the input into buf, like ReadableByteChannel.read
+    protected int read(ByteBuffer buf) throws IOException {
+        if (inChannel != null)
+            return inChannel.read(buf);
+        int n = is.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        if (n > 0)
+            buf.position(buf.position() + n);
+        return n;
+    }
+
+    // reads the next frame from the input into buf, which the caller cleared;
+    // returns true at the end of input, possibly with a last frame in buf
+    protected boolean readFrame(ByteBuffer buf) throws IOException {
+        buf.limit(sizer.frameSize());
+        if (read(buf) == -1)
+            return true;
+        // add what follows right away, or within the flush delay in bulk mode
+        long frameStart = System.nanoTime();
+        while (buf.hasRemaining()) {
+            if (is.available() > 0) {
+                if (read(buf) == -1)
+                    return true;
+            } else if (!sizer.linger(frameStart))
+                break;
+        }
+        return false;
+    }
 
+    protected Runnable reader = new Runnable() {
         @Override
         public void run() {
-            RemoteEndpoint.Basic remote = session.getBasicRemote();
+            // a channel reads into a direct buffer without copying
+            ByteBuffer buf = inChannel != null ? BufferPool.shared.acquire(sizer.getMaxFrame()) : ByteBuffer.allocate(sizer.getMaxFrame());
             try {
-                byte[] buf = new byte[bufferSize];
-                while (true) {
-                    int bytesRead;
+                boolean eof = false;
+                while (!eof) {
+                    buf.clear();
                     try {
-                        bytesRead = is.read(buf);
+                        eof = readFrame(buf);
                     } catch (IOException e) {
+                        // the input was closed after the session ended, e.g. by WSTcpListener
+                        if (toFinish.getCount() == 0)
+                            return;
                         log.println("IO error reading input: " + e.getMessage());
                         errors.incrementAndGet();
-                        break;
+                        return;
                     }
-                    if (!session.isOpen()) {
-                        if (bytesRead > 0) {
+                    buf.flip();
+                    int length = buf.remaining();
+                    if (!isOpen()) {
+                        if (length > 0) {
                             log.println("Error: remote side unexpectedly closed");
                             errors.incrementAndGet();
                         }
-                        break;
+                        return;
                     }
-                    if (bytesRead != -1) {
-                        // send a message when something to send
-                        if (bytesRead > 0) {
-                            if (sendScrambler != null)
-                                sendScrambler.scramble(buf, 0, bytesRead);
-                            remote.sendBinary(ByteBuffer.wrap(buf, 0, bytesRead));
+                    // send a message when something to send
+                    if (length > 0) {
+                        try {
+                            TokenBucket.acquire(length, upLimits);
+                        } catch (InterruptedException e) {
+                            return;
                         }
-                    } else {
-                        // end-of-stream, send empty message marker, then terminate
-                        remote.sendBinary(ByteBuffer.wrap(buf, 0, 0));
-                        break;
+                        sizer.sent(length);
+                        send(buf);
                     }
                 }
+                sendEnd();
+            } catch (InterruptedIOException e) {
+                return;
             } catch (IOException e) {
                 log.println("IO error on websocket: " + e.getMessage());
                 errors.incrementAndGet();
+            } finally {
+                BufferPool.shared.release(buf);
+                readerDone();
             }
         }
     };
 
+    protected void readerDone() {
+        if (compressor != null)
+            compressor.close();
+    }
+
+    // start relaying between the session and is and os; what the server sent meanwhile is output first;
+    // before the session opened, onOpen starts relaying
+    public void attach(InputStream is, OutputStream os) throws IOException {
+        Thread thread;
+        synchronized (this) {
+            setStreams(is, os);
+            if (traceName != null && early.size() > 0)
+                traced();
+            early.writeTo(os);
+            early = null;
+            if (earlyEof)
+                os.close();
+            else
+                os.flush();
+            if (session == null)
+                return;
+            thread = readerThread = Threads.newThread(reader, virtualThreads);
+        }
+        thread.start();
+    }
+
+    // whether the session can still be attached
+    public synchronized boolean isUsable() {
+        return session.isOpen() && !earlyEof;
+    }
+
+    // log the delay from startNanos to the first byte from the server, as name
+    public synchronized void trace(String name, long startNanos) {
+        traceName = name;
+        traceStart = startNanos;
+    }
+
+    // guarded by this
+    protected void traced() {
+        log.println(String.format("%s: first byte after %.1f ms", traceName, (System.nanoTime() - traceStart) / 1e6));
+        traceName = null;
+    }
+
+    // close without using the session; the server drops the connection
+    public void discard() throws IOException {
+        discarded = true;
+        session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Unused"));
+    }
+
+    // guarded by this
+    protected void output(ByteBuffer msg) throws IOException {
+        try {
+            TokenBucket.acquire(msg.remaining(), downLimits);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (os == null) {
+            if (early.size() + msg.remaining() > maxEarly) {
+                log.println("Error: too much data before attach");
+                discard();
+                return;
+            }
+            copyTo(msg, early);
+            return;
+        }
+        if (traceName != null)
+            traced();
+        if (outChannel == null) {
+            copyTo(msg, os);
+            return;
+        }
+        if (msg.remaining() >= maxPending) {
+            flushOutput();
+            while (msg.hasRemaining())
+                outChannel.write(msg);
+            return;
+        }
+        ByteBuffer copy = BufferPool.shared.acquire(msg.remaining());
+        copy.put(msg);
+        copy.flip();
+        pending.add(copy);
+        pendingBytes += copy.remaining();
+        if (pendingBytes >= maxPending)
+            flushOutput();
+    }
+
+    // guarded by this; writes what output queued, with as few writes as possible
+    protected void flushOutput() throws IOException {
+        if (outChannel == null) {
+            os.flush();
+            return;
+        }
+        ByteBuffer[] bufs = pending.toArray(new ByteBuffer[pending.size()]);
+        pending.clear();
+        pendingBytes = 0;
+        try {
+            int i = 0;
+            while (i < bufs.length) {
+                outChannel.write(bufs, i, bufs.length - i);
+                while (i < bufs.length && !bufs[i].hasRemaining())
+                    ++i;
+            }
+        } finally {
+            for (ByteBuffer b : bufs)
+                BufferPool.shared.release(b);
+        }
+    }
+
+    // guarded by this
+    protected void outputEnd() throws IOException {
+        if (os != null) {
+            flushOutput();
+            os.close();
+        } else
+            earlyEof = true;
+    }
+
+    protected byte[] copyBuf;
+
+    protected void copyTo(ByteBuffer msg, OutputStream out) throws IOException {
+        if (msg.hasArray()) {
+            out.write(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining());
+            return;
+        }
+        if (copyBuf == null)
+            copyBuf = new byte[BufferPool.minSize];
+        while (msg.hasRemaining()) {
+            int n = Math.min(msg.remaining(), copyBuf.length);
+            msg.get(copyBuf, 0, n);
+            out.write(copyBuf, 0, n);
+        }
+    }
+
     @Override
     public void onOpen(Session session, EndpointConfig config) {
-        this.session = session;
-        session.addMessageHandler(byte[].class, new MessageHandler.Partial<byte[]>() {
+        synchronized (this) {
+            this.session = session;
+        }
+        openedNanos = metrics.sessionOpened();
+        watch = watch(log, session);
+        if (compressionConfirmed) {
+            compressor = new Compressor();
+            decompressor = new Decompressor();
+        }
+        // guarded by this, like output
+        final Decompressor.Sink sink = new Decompressor.Sink() {
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                output(data);
+            }
+        };
+        session.addMessageHandler(ByteBuffer.class, new MessageHandler.Partial<ByteBuffer>() {
             private int totalLength = 0;
 
             @Override
-            public void onMessage(byte[] msg, boolean last) {
+            public void onMessage(ByteBuffer msg, boolean last) {
                 try {
-                    if (msg.length > 0) {
-                        if (recvScrambler != null)
-                            recvScrambler.scramble(msg, 0, msg.length);
-                        os.write(msg);
-                        totalLength += msg.length;
-                    }
-                    if (last) {
-                        if (totalLength > 0) {
-                            os.flush();
-                            totalLength = 0;
-                        } else {
-                            os.close();
+                    synchronized (WSTcpClient.this) {
+                        int length = msg.remaining();
+                        if (length > 0) {
+                            if (recvScrambler != null)
+                                msg = recvScrambler.scramble(msg);
+                            if (decompressor != null)
+                                decompressor.decompress(msg, totalLength == 0, sink);
+                            else
+                                output(msg);
+                            totalLength += length;
+                        }
+                        if (last) {
+                            if (totalLength > 0) {
+                                metrics.frameDown(totalLength);
+                                active();
+                                if (os != null)
+                                    flushOutput();
+                                totalLength = 0;
+                            } else {
+                                outputEnd();
+                            }
                         }
                     }
                 } catch (IOException e) {
@@ -115,15 +476,31 @@ public class WSTcpClient extends Endpoint {
                 }
             }
         });
-        reader.start();
+        // unless attach started it already
+        Thread thread = null;
+        synchronized (this) {
+            if (is != null && readerThread == null)
+                thread = readerThread = Threads.newThread(reader, virtualThreads);
+        }
+        if (thread != null)
+            thread.start();
     }
 
     @Override
     public void onClose(Session session, CloseReason c) {
-        if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE) {
+        metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        if (watch != null)
+            watch.cancel();
+        if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE && !discarded) {
             log.println("Websocket closed: " + c.getReasonPhrase());
             errors.incrementAndGet();
         }
+        if (errors.get() > 0)
+            metrics.error();
+        synchronized (this) {
+            if (decompressor != null)
+                decompressor.close();
+        }
         toFinish.countDown();
     }
 
@@ -145,6 +522,19 @@ public class WSTcpClient extends Endpoint {
     }
 
     protected static boolean scramble = false;
+    protected static boolean virtual = false;
+    protected static int maxFrame = FrameSizer.defaultMaxFrame;
+    protected static int flushDelay = 0;
+    protected static String muxPath;
+    protected static int listenPort = -1;
+    protected static int udpPort = -1;
+    protected static int poolSize = 2;
+    protected static int idleTimeout = 60;
+    protected static boolean verbose = false;
+    protected static boolean compression = false;
+    protected static boolean resume = false;
+    protected static int rate = 0;
+    protected static int ping = 0;
     protected static String endPointURL;
 
     protected static boolean parseArgs(String[] args) {
@@ -154,6 +544,61 @@ public class WSTcpClient extends Endpoint {
                 scramble = true;
             } else if (arg.equals("-no-scramble")) {
                 scramble = false;
+            } else if (arg.equals("-virtual-threads")) {
+                virtual = true;
+            } else if (arg.equals("-mux")) {
+                if (i + 1 == args.length || args[i+1].isEmpty() || args[i+1].charAt(0) != '/') {
+                    System.err.println("Error: -mux needs the path of an endpoint, e.g. /ssh");
+                    return false;
+                }
+                muxPath = args[++i];
+            } else if (arg.equals("-compress")) {
+                compression = true;
+            } else if (arg.equals("-resume")) {
+                resume = true;
+            } else if (arg.equals("-verbose")) {
+                verbose = true;
+            } else if (arg.equals("-rate")) {
+                if (i + 1 == args.length) {
+                    System.err.println("Error: missing value for option: " + arg);
+                    return false;
+                }
+                try {
+                    rate = TokenBucket.parseRate(args[++i]);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: invalid value for option: " + arg);
+                    return false;
+                }
+            } else if (arg.equals("-max-frame") || arg.equals("-flush-delay") || arg.equals("-listen")
+                       || arg.equals("-udp") || arg.equals("-pool") || arg.equals("-idle-timeout") || arg.equals("-ping")) {
+                if (i + 1 == args.length) {
+                    System.err.println("Error: missing value for option: " + arg);
+                    return false;
+                }
+                int value;
+                try {
+                    value = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    value = -1;
+                }
+                if (value < 0) {
+                    System.err.println("Error: invalid value for option: " + arg);
+                    return false;
+                }
+                if (arg.equals("-max-frame"))
+                    maxFrame = value;
+                else if (arg.equals("-flush-delay"))
+                    flushDelay = value;
+                else if (arg.equals("-listen"))
+                    listenPort = value;
+                else if (arg.equals("-udp"))
+                    udpPort = value;
+                else if (arg.equals("-pool"))
+                    poolSize = value;
+                else if (arg.equals("-ping"))
+                    ping = value;
+                else
+                    idleTimeout = value;
             } else if (!arg.isEmpty() && arg.charAt(0) == '-') {
                 System.err.println("Error: unrecognized command line option: " + arg);
                 return false;
@@ -170,12 +615,52 @@ public class WSTcpClient extends Endpoint {
             System.err.println("Error: too few arguments");
             return false;
         }
+        if (resume && (muxPath != null || listenPort != -1)) {
+            System.err.println("Error: -resume cannot be combined with -mux or -listen");
+            return false;
+        }
+        if (udpPort != -1 && (muxPath != null || listenPort != -1 || resume || compression || rate > 0)) {
+            System.err.println("Error: -udp cannot be combined with -mux, -listen, -resume, -compress or -rate");
+            return false;
+        }
         return true;
     }
 
+    // the endpoint url, with the scramble key added to the query
+    public static URI withKey(URI uri, long key) {
+        return withParam(uri, "key", Long.toHexString(key));
+    }
+
+    // the endpoint url, asking the server to compress
+    public static URI withCompression(URI uri) {
+        return withParam(uri, Compressor.queryParam, Compressor.method);
+    }
+
+    protected static URI withParam(URI uri, String name, String value) {
+        String query = uri.getQuery();
+        if (query != null)
+            query = query + "&" + name + "=" + value;
+        else
+            query = name + "=" + value;
+        try {
+            return new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), query, uri.getFragment());
+        } catch (URISyntaxException e) {
+            throw new AssertionError("URI should be valid", e);
+        }
+    }
+
+    // unbuffered, so that the client uses their channels
+    protected static FileInputStream stdin() {
+        return new FileInputStream(FileDescriptor.in);
+    }
+
+    protected static FileOutputStream stdout() {
+        return new FileOutputStream(FileDescriptor.out);
+    }
+
     public static void main(String[] args) {
         if (!parseArgs(args)) {
-            System.err.println("Usage: " + WSTcpClient.class.getName() + " [-scramble|-no-scramble] <endpoint-url>");
+            System.err.println("Usage: " + WSTcpClient.class.getName() + " [-scramble|-no-scramble] [-virtual-threads] [-max-frame <bytes>] [-flush-delay <ms>] [-compress] [-rate <bytes/s>] [-ping <s>] [-resume] [-mux <path>] [-listen <port> [-pool <n>] [-idle-timeout <s>] [-verbose]] [-udp <port> [-idle-timeout <s>] [-verbose]] <endpoint-url>");
             System.exit(1);
         }
         try {
@@ -188,32 +673,99 @@ public class WSTcpClient extends Endpoint {
             if (!uri.isAbsolute() || uri.getSchemeSpecificPart().charAt(0) != '/') {
                 throw new FatalError("endpoint url is not of the proper form");
             }
+            setRate(rate);
+            setPing(ping * 1000000000L);
+            if (udpPort != -1) {
+                // every local address gets its own session and key
+                WSTcpDatagramListener listener;
+                try {
+                    listener = new WSTcpDatagramListener(System.err, ContainerProvider.getWebSocketContainer(), uri, scramble, udpPort);
+                } catch (IOException e) {
+                    throw new FatalError("could not listen on udp port " + udpPort + ": " + e.getMessage());
+                }
+                listener.setVirtualThreads(virtual);
+                listener.setIdleTimeout(idleTimeout * 1000000000L);
+                listener.setVerbose(verbose);
+                listener.run();
+                System.exit(1);
+            }
+            if (listenPort != -1) {
+                // every session gets its own key
+                WSTcpListener listener;
+                try {
+                    listener = new WSTcpListener(System.err, ContainerProvider.getWebSocketContainer(), uri, scramble, listenPort);
+                } catch (IOException e) {
+                    throw new FatalError("could not listen on port " + listenPort + ": " + e.getMessage());
+                }
+                listener.setVirtualThreads(virtual);
+                listener.setFrameSizing(maxFrame, flushDelay * 1000000L);
+                listener.setPool(poolSize, idleTimeout * 1000000000L);
+                listener.setMuxPath(muxPath);
+                listener.setCompression(compression);
+                listener.setVerbose(verbose);
+                listener.registerMBean();
+                listener.run();
+                System.exit(1);
+            }
+            if (resume) {
+                // every connection gets its own key
+                WSTcpResumableClient endpoint = new WSTcpResumableClient(System.err, stdin(), stdout(), ContainerProvider.getWebSocketContainer(), uri, scramble);
+                endpoint.setVirtualThreads(virtual);
+                endpoint.setFrameSizing(maxFrame, flushDelay * 1000000L);
+                endpoint.setCompression(compression);
+                try {
+                    endpoint.connect();
+                } catch (Exception e) {
+                    String msg = e.getMessage();
+                    if (msg == null)
+                        msg = e.getClass().getName();
+                    throw new FatalError("could not connect to endpoint: " + msg);
+                }
+                try {
+                    endpoint.waitUntilDone();
+                } catch (InterruptedException e) {
+                    throw new AssertionError("Unexpectedly interrupted");
+                }
+                System.exit(endpoint.getErrorCount());
+            }
             Long optKey;
             if (scramble) {
                 long key = System.nanoTime();
-                String query = uri.getQuery();
-                if (query != null)
-                    query = query + "&key=" + Long.toHexString(key);
-                else
-                    query = "key=" + Long.toHexString(key);
-                try {
-                    uri = new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), query, uri.getFragment());
-                } catch (URISyntaxException e) {
-                    throw new AssertionError("URI should be valid", e);
-                }
+                uri = withKey(uri, key);
                 optKey = Long.valueOf(key);
             } else
                 optKey = null;
 
-            WebSocketContainer container = ContainerProvider.getWebSocketContainer();
-            WSTcpClient endpoint = new WSTcpClient(System.err, System.in, System.out, optKey);
+            if (muxPath != null)
+                System.exit(WSTcpMuxClient.run(ContainerProvider.getWebSocketContainer(), uri, optKey, muxPath, virtual));
+            final WSTcpClient endpoint = new WSTcpClient(System.err, optKey);
+            endpoint.setVirtualThreads(virtual);
+            endpoint.setFrameSizing(maxFrame, flushDelay * 1000000L);
+            endpoint.setCompression(compression);
+            final URI target = compression ? withCompression(uri) : uri;
+            // the container starts and the handshake goes ahead on another thread, while this one
+            // sets up stdin and stdout; the session relays them from when both are done
+            FutureTask<Session> handshake = new FutureTask<>(new Callable<Session>() {
+                @Override
+                public Session call() throws Exception {
+                    return ContainerProvider.getWebSocketContainer().connectToServer(endpoint, endpoint.newConfig(), target);
+                }
+            });
+            new Thread(handshake, "wstcp-connect").start();
+            try {
+                endpoint.attach(stdin(), stdout());
+            } catch (IOException e) {
+                throw new FatalError("could not output: " + e.getMessage());
+            }
             try {
-                container.connectToServer(endpoint, ClientEndpointConfig.Builder.create().build(), uri);
-            } catch (Exception e) {
-                String msg = e.getMessage();
+                handshake.get();
+            } catch (ExecutionException e) {
+                String msg = e.getCause().getMessage();
                 if (msg == null)
-                    msg = e.getClass().getName();
+                    msg = e.getCause().getClass().getName();
                 throw new FatalError("could not connect to endpoint: " + msg);
+            } catch (InterruptedException e) {
+                throw new AssertionError("Unexpectedly interrupted");
             }
             try {
                 endpoint.waitUntilDone();
@@ -0,0 +1,251 @@
+package net.defraine.wstcp.client;
+
+import net.defraine.wstcp.IdleWheel;
+import net.defraine.wstcp.Scrambler;
+import net.defraine.wstcp.Threads;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+// receives datagrams on a local port and tunnels them to a udp endpoint: every local address that
+// sends gets its own session, over which each datagram is one message, and the datagrams of the
+// session go back to that address; a session is closed after the idle timeout without datagrams
+public class WSTcpDatagramListener implements Runnable {
+    // the largest UDP payload
+    protected static final int maxDatagram = 65535;
+    // datagrams of one address waiting for its session, e.g. during the handshake; more are dropped
+    protected static final int maxWaiting = 64;
+    // queued when the session closed, so that its thread stops waiting for datagrams
+    protected static final ByteBuffer wakeUp = ByteBuffer.allocate(0);
+
+    protected final PrintStream log;
+    protected final WebSocketContainer container;
+    protected final URI uri;
+    protected final boolean scramble;
+    protected final DatagramChannel socket;
+    protected final Map<SocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    protected final AtomicInteger flows = new AtomicInteger(0);
+
+    protected boolean virtualThreads = false;
+    protected long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+    protected boolean verbose = false;
+
+    // the session of one local address; its thread connects and then sends what the address sent,
+    // so that a slow session does not hold up the datagrams of the others
+    protected class Peer extends Endpoint implements Runnable {
+        protected final SocketAddress address;
+        protected final String name;
+        protected final BlockingQueue<ByteBuffer> waiting = new ArrayBlockingQueue<>(maxWaiting);
+        protected final ByteBuffer received = ByteBuffer.allocate(maxDatagram);
+        protected Scrambler sendScrambler;
+        protected Scrambler recvScrambler;
+        protected volatile Session session;
+        protected IdleWheel.Watch watch;
+        protected volatile boolean closed = false;
+        protected volatile long lastActive = System.nanoTime();
+        protected long openedNanos;
+
+        protected Peer(SocketAddress address, String name) {
+            this.address = address;
+            this.name = name;
+        }
+
+        // queues a copy of datagram, false when dropped
+        protected boolean offer(ByteBuffer datagram) {
+            ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+            copy.put(datagram);
+            copy.flip();
+            return waiting.offer(copy);
+        }
+
+        @Override
+        public void onOpen(Session s, EndpointConfig config) {
+            session = s;
+            openedNanos = WSTcpClient.metrics.sessionOpened();
+            watch = WSTcpClient.watch(log, s);
+            s.addMessageHandler(ByteBuffer.class, new MessageHandler.Partial<ByteBuffer>() {
+                @Override
+                public void onMessage(ByteBuffer msg, boolean last) {
+                    if (recvScrambler != null)
+                        msg = recvScrambler.scramble(msg);
+                    if (msg.remaining() > received.remaining()) {
+                        log.println("Error: " + name + ": datagram too large");
+                        close(CloseReason.CloseCodes.TOO_BIG, "Datagram too large");
+                        return;
+                    }
+                    received.put(msg);
+                    if (!last)
+                        return;
+                    received.flip();
+                    WSTcpClient.metrics.frameDown(received.remaining());
+                    lastActive = System.nanoTime();
+                    if (watch != null)
+                        watch.active();
+                    try {
+                        socket.send(received, address);
+                    } catch (IOException e) {
+                        log.println("Error: " + name + ": could not send datagram: " + e.getMessage());
+                    } finally {
+                        received.clear();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onClose(Session s, CloseReason c) {
+            WSTcpClient.metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+            if (watch != null)
+                watch.cancel();
+            if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE) {
+                log.println("Error: " + name + ": websocket closed: " + c.getReasonPhrase());
+                WSTcpClient.metrics.error();
+            }
+            closed = true;
+            peers.remove(address, this);
+            // when the queue is full, the thread does not wait
+            waiting.offer(wakeUp);
+        }
+
+        protected void close(CloseReason.CloseCode code, String reason) {
+            closed = true;
+            peers.remove(address, this);
+            Session s = session;
+            if (s == null)
+                return;
+            try {
+                s.close(new CloseReason(code, reason));
+            } catch (IOException e) {
+                // closed already
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Long optKey = scramble ? Long.valueOf(System.nanoTime()) : null;
+            URI target = uri;
+            if (optKey != null) {
+                long key = optKey.longValue();
+                sendScrambler = new Scrambler(key);
+                recvScrambler = new Scrambler(~key);
+                target = WSTcpClient.withKey(uri, key);
+            }
+            try {
+                container.connectToServer(this, ClientEndpointConfig.Builder.create().build(), target);
+            } catch (Exception e) {
+                WSTcpClient.metrics.connectFailed();
+                log.println("Error: " + name + ": could not connect to endpoint: " + e.getMessage());
+                closed = true;
+                peers.remove(address, this);
+                return;
+            }
+            WSTcpClient.metrics.connected(start);
+            if (verbose)
+                log.println(String.format("%s: session after %.1f ms", name, (System.nanoTime() - start) / 1e6));
+            try {
+                while (!closed) {
+                    long idle = lastActive + idleTimeoutNanos - System.nanoTime();
+                    ByteBuffer datagram = waiting.poll(Math.max(idle, 0), TimeUnit.NANOSECONDS);
+                    if (datagram == wakeUp)
+                        continue;
+                    if (datagram == null) {
+                        if (System.nanoTime() - lastActive >= idleTimeoutNanos) {
+                            if (verbose)
+                                log.println(name + ": idle, closing");
+                            close(CloseReason.CloseCodes.NORMAL_CLOSURE, "Idle");
+                        }
+                        continue;
+                    }
+                    WSTcpClient.metrics.frameUp(datagram.remaining());
+                    if (watch != null)
+                        watch.active();
+                    if (sendScrambler != null)
+                        sendScrambler.scramble(datagram);
+                    try {
+                        session.getBasicRemote().sendBinary(datagram);
+                    } catch (IOException | IllegalStateException e) {
+                        log.println("Error: " + name + ": IO error on websocket: " + e.getMessage());
+                        close(CloseReason.CloseCodes.GOING_AWAY, "Send failed");
+                    }
+                }
+            } catch (InterruptedException e) {
+                close(CloseReason.CloseCodes.GOING_AWAY, "Exiting");
+            }
+        }
+    }
+
+    public WSTcpDatagramListener(PrintStream log, WebSocketContainer container, URI uri, boolean scramble, int port) throws IOException {
+        this.log = log;
+        this.container = container;
+        this.uri = uri;
+        this.scramble = scramble;
+        socket = DatagramChannel.open();
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    // close the session of an address after idleTimeoutNanos without datagrams either way
+    public void setIdleTimeout(long idleTimeoutNanos) {
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    // log when each address gets its session, and when it goes idle
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress)socket.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(maxDatagram);
+        while (true) {
+            SocketAddress from;
+            buf.clear();
+            try {
+                from = socket.receive(buf);
+            } catch (IOException e) {
+                log.println("Error: could not receive: " + e.getMessage());
+                return;
+            }
+            buf.flip();
+            Peer peer = peers.get(from);
+            if (peer == null || peer.closed) {
+                String name = "flow " + flows.incrementAndGet() + " from " + from;
+                peer = new Peer(from, name);
+                peers.put(from, peer);
+                if (verbose)
+                    log.println(name + ": new");
+                Threads.newThread(peer, virtualThreads).start();
+            }
+            peer.lastActive = System.nanoTime();
+            if (!peer.offer(buf) && verbose)
+                log.println(peer.name + ": session busy, datagram dropped");
+        }
+    }
+}
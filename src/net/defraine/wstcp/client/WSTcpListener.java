@@ -0,0 +1,300 @@
+package net.defraine.wstcp.client;
+
+import net.defraine.wstcp.FrameSizer;
+import net.defraine.wstcp.MuxConnection;
+import net.defraine.wstcp.Threads;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.Endpoint;
+import javax.websocket.WebSocketContainer;
+
+// accepts local connections and tunnels each one; without a mux path, every connection gets its
+// own session, taken from a pool of sessions that are opened ahead; with a mux path, connections
+// are streams over one mux session
+public class WSTcpListener implements Runnable {
+    protected final PrintStream log;
+    protected final WebSocketContainer container;
+    protected final URI uri;
+    protected final boolean scramble;
+    protected final ServerSocketChannel server;
+    protected final AtomicInteger connections = new AtomicInteger(0);
+
+    protected boolean virtualThreads = false;
+    protected int maxFrame = FrameSizer.defaultMaxFrame;
+    protected long flushDelayNanos = 0;
+    protected boolean verbose = false;
+    protected boolean compress = false;
+
+    // the pool, when not muxing
+    protected int poolSize = 2;
+    protected long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+    protected final LinkedBlockingDeque<Pooled> pool = new LinkedBlockingDeque<>();
+    protected final Object poolChanged = new Object();
+
+    // the session for streams, when muxing
+    protected String muxPath;
+    protected WSTcpMuxClient mux;
+
+    protected static class Pooled {
+        protected final WSTcpClient client;
+        protected final long opened = System.nanoTime();
+
+        protected Pooled(WSTcpClient client) {
+            this.client = client;
+        }
+    }
+
+    public WSTcpListener(PrintStream log, WebSocketContainer container, URI uri, boolean scramble, int port) throws IOException {
+        this.log = log;
+        this.container = container;
+        this.uri = uri;
+        this.scramble = scramble;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setFrameSizing(int maxFrame, long flushDelayNanos) {
+        this.maxFrame = maxFrame;
+        this.flushDelayNanos = flushDelayNanos;
+    }
+
+    // sessions that are not muxed ask the server to compress
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    // log when each connection gets its session and its first byte
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    // keep size sessions open ahead, and replace them after idleTimeoutNanos
+    public void setPool(int size, long idleTimeoutNanos) {
+        this.poolSize = size;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    // tunnel connections as streams to path over the mux endpoint
+    public void setMuxPath(String path) {
+        this.muxPath = path;
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress)server.getLocalAddress()).getPort();
+    }
+
+    // expose the client metrics over JMX, this process runs for a while
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(WSTcpClient.metrics,
+                new ObjectName("net.defraine.wstcp:type=Client,port=" + getPort()));
+        } catch (JMException | IOException e) {
+            log.println("Error: could not register MBean: " + e.getMessage());
+        }
+    }
+
+    protected void connect(Endpoint endpoint, ClientEndpointConfig config, URI target) throws IOException {
+        long start = System.nanoTime();
+        try {
+            container.connectToServer(endpoint, config, target);
+        } catch (Exception e) {
+            WSTcpClient.metrics.connectFailed();
+            String msg = e.getMessage();
+            if (msg == null)
+                msg = e.getClass().getName();
+            throw new IOException("could not connect to endpoint: " + msg);
+        }
+        WSTcpClient.metrics.connected(start);
+    }
+
+    protected Long newKey() {
+        return scramble ? Long.valueOf(System.nanoTime()) : null;
+    }
+
+    protected WSTcpClient newClient() throws IOException {
+        Long optKey = newKey();
+        WSTcpClient client = new WSTcpClient(log, optKey);
+        client.setVirtualThreads(virtualThreads);
+        client.setFrameSizing(maxFrame, flushDelayNanos);
+        client.setCompression(compress);
+        URI target = optKey != null ? WSTcpClient.withKey(uri, optKey.longValue()) : uri;
+        if (compress)
+            target = WSTcpClient.withCompression(target);
+        connect(client, client.newConfig(), target);
+        return client;
+    }
+
+    protected boolean isFresh(Pooled p) {
+        return p.client.isUsable() && System.nanoTime() - p.opened < idleTimeoutNanos;
+    }
+
+    protected void discard(Pooled p) {
+        try {
+            p.client.discard();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    // keeps the pool filled with fresh sessions
+    protected void fillPool() {
+        while (true) {
+            for (Pooled p : pool) {
+                if (!isFresh(p) && pool.remove(p))
+                    discard(p);
+            }
+            long wait = idleTimeoutNanos;
+            if (pool.size() < poolSize) {
+                try {
+                    pool.addLast(new Pooled(newClient()));
+                    continue;
+                } catch (IOException e) {
+                    log.println("Error: " + e.getMessage());
+                    wait = TimeUnit.SECONDS.toNanos(1);
+                }
+            } else {
+                Pooled oldest = pool.peekFirst();
+                if (oldest != null)
+                    wait = Math.max(0, oldest.opened + idleTimeoutNanos - System.nanoTime());
+            }
+            synchronized (poolChanged) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(poolChanged, Math.max(wait, 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // a fresh session from the pool, or a new one when the pool is empty
+    protected WSTcpClient take(String name) throws IOException {
+        Pooled p;
+        WSTcpClient client = null;
+        while ((p = pool.pollFirst()) != null) {
+            if (isFresh(p)) {
+                client = p.client;
+                break;
+            }
+            discard(p);
+        }
+        synchronized (poolChanged) {
+            poolChanged.notifyAll();
+        }
+        if (verbose && client != null)
+            log.println(name + ": pooled session");
+        if (client == null) {
+            if (verbose)
+                log.println(name + ": no pooled session, connecting");
+            client = newClient();
+        }
+        return client;
+    }
+
+    protected synchronized WSTcpMuxClient getMux() throws IOException {
+        if (mux == null || !mux.isOpen()) {
+            Long optKey = newKey();
+            mux = new WSTcpMuxClient(log, optKey);
+            mux.setVirtualThreads(virtualThreads);
+            URI target = optKey != null ? WSTcpClient.withKey(uri, optKey.longValue()) : uri;
+            connect(mux, ClientEndpointConfig.Builder.create().build(), target);
+        }
+        return mux;
+    }
+
+    protected void serve(final SocketChannel sock, String name) throws IOException, InterruptedException {
+        long accepted = System.nanoTime();
+        if (muxPath != null) {
+            WSTcpMuxClient client = getMux();
+            MuxConnection.Stream stream = client.openStream(muxPath, sock, sock);
+            if (verbose)
+                log.println(String.format("%s: stream %d opened after %.1f ms", name, stream.getId(), (System.nanoTime() - accepted) / 1e6));
+            client.waitForStream(stream);
+            return;
+        }
+        WSTcpClient client = take(name);
+        if (verbose) {
+            log.println(String.format("%s: attached after %.1f ms", name, (System.nanoTime() - accepted) / 1e6));
+            client.trace(name, accepted);
+        }
+        final OutputStream os = sock.socket().getOutputStream();
+        // the tunnel closes its output at end of stream, that is a half-close of the socket
+        client.attach(sock.socket().getInputStream(), new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                os.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                os.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                sock.shutdownOutput();
+            }
+        });
+        client.waitUntilDone();
+    }
+
+    @Override
+    public void run() {
+        if (muxPath == null) {
+            Thread filler = new Thread("wstcp-pool") {
+                @Override
+                public void run() {
+                    fillPool();
+                }
+            };
+            filler.setDaemon(true);
+            filler.start();
+        }
+        while (true) {
+            final SocketChannel sock;
+            try {
+                sock = server.accept();
+            } catch (IOException e) {
+                log.println("Error: could not accept: " + e.getMessage());
+                return;
+            }
+            final String name = "connection " + connections.incrementAndGet();
+            Threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(sock, name);
+                    } catch (IOException e) {
+                        log.println("Error: " + name + ": " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        // exiting
+                    } finally {
+                        try {
+                            sock.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }, virtualThreads).start();
+        }
+    }
+}
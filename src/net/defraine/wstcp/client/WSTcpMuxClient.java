@@ -0,0 +1,148 @@
+package net.defraine.wstcp.client;
+
+import net.defraine.wstcp.IdleWheel;
+import net.defraine.wstcp.MuxConnection;
+import net.defraine.wstcp.Scrambler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+// client of a mux endpoint: opens streams to endpoints of the server, over one session
+public class WSTcpMuxClient extends Endpoint {
+    protected PrintStream log;
+    protected Session session;
+    protected MuxConnection mux;
+    protected AtomicInteger errors = new AtomicInteger(0);
+    protected CountDownLatch toFinish = new CountDownLatch(1);
+    protected Scrambler sendScrambler;
+    protected Scrambler recvScrambler;
+    protected boolean virtualThreads = false;
+    protected long openedNanos;
+    protected IdleWheel.Watch watch;
+
+    public WSTcpMuxClient(PrintStream log, Long optKey) {
+        this.log = log;
+        if (optKey != null) {
+            long key = optKey.longValue();
+            sendScrambler = new Scrambler(key);
+            recvScrambler = new Scrambler(~key);
+        }
+    }
+
+    // run the stream threads on virtual threads, if supported; must be set before connecting
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        this.session = session;
+        openedNanos = WSTcpClient.metrics.sessionOpened();
+        watch = WSTcpClient.watch(log, session);
+        mux = new MuxConnection(session, sendScrambler, recvScrambler, virtualThreads) {
+            @Override
+            protected void log(String message) {
+                log.println(message);
+            }
+
+            @Override
+            protected void opened(int id, String path) {
+                protocolError("server opened stream " + id);
+            }
+
+            @Override
+            protected void active() {
+                if (watch != null)
+                    watch.active();
+            }
+        };
+        mux.setMetrics(WSTcpClient.metrics, true);
+        mux.setRateLimits(WSTcpClient.upLimits, WSTcpClient.downLimits);
+    }
+
+    // relay between in and out and the endpoint at path, e.g. /ssh
+    public MuxConnection.Stream openStream(String path, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        MuxConnection.Stream stream = mux.open(path);
+        stream.attach(in, out);
+        return stream;
+    }
+
+    // wait for the stream to end, counting a reset as an error
+    public void waitForStream(MuxConnection.Stream stream) throws InterruptedException {
+        stream.waitUntilDone();
+        String reason = stream.getResetReason();
+        if (reason != null) {
+            log.println("Error: stream reset: " + reason);
+            errors.incrementAndGet();
+        }
+    }
+
+    public boolean isOpen() {
+        return session.isOpen();
+    }
+
+    public void close() throws IOException {
+        session.close(new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, "Bye"));
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason c) {
+        WSTcpClient.metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        if (watch != null)
+            watch.cancel();
+        if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE) {
+            log.println("Websocket closed: " + c.getReasonPhrase());
+            errors.incrementAndGet();
+        }
+        if (errors.get() > 0)
+            WSTcpClient.metrics.error();
+        if (mux != null)
+            mux.closeAll();
+        toFinish.countDown();
+    }
+
+    public void waitUntilDone() throws InterruptedException {
+        toFinish.await();
+    }
+
+    public int getErrorCount() {
+        return errors.get();
+    }
+
+    // one stream to path over the mux endpoint at uri, on stdin and stdout, returns the error count;
+    // here rather than in WSTcpClient, so that a client without -mux does not load this class
+    protected static int run(WebSocketContainer container, URI uri, Long optKey, String path, boolean virtual) throws WSTcpClient.FatalError {
+        WSTcpMuxClient endpoint = new WSTcpMuxClient(System.err, optKey);
+        endpoint.setVirtualThreads(virtual);
+        try {
+            container.connectToServer(endpoint, ClientEndpointConfig.Builder.create().build(), uri);
+        } catch (Exception e) {
+            String msg = e.getMessage();
+            if (msg == null)
+                msg = e.getClass().getName();
+            throw new WSTcpClient.FatalError("could not connect to endpoint: " + msg);
+        }
+        try {
+            endpoint.waitForStream(endpoint.openStream(path, WSTcpClient.stdin().getChannel(), WSTcpClient.stdout().getChannel()));
+            endpoint.close();
+            endpoint.waitUntilDone();
+        } catch (IOException e) {
+            System.err.println("IO error on websocket: " + e.getMessage());
+            return endpoint.getErrorCount() + 1;
+        } catch (InterruptedException e) {
+            throw new AssertionError("Unexpectedly interrupted");
+        }
+        return endpoint.getErrorCount();
+    }
+}
@@ -0,0 +1,402 @@
+package net.defraine.wstcp.client;
+
+import net.defraine.wstcp.BufferPool;
+import net.defraine.wstcp.ReplayBuffer;
+import net.defraine.wstcp.Scrambler;
+import net.defraine.wstcp.Threads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.websocket.CloseReason;
+import javax.websocket.DeploymentException;
+import javax.websocket.EndpointConfig;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+// a client whose tunnel survives the loss of the websocket: the server keeps the connection to
+// the destination for a grace period, in which this client connects again to resume the tunnel;
+// both sides then send again what the other did not receive; every connection scrambles with a
+// new key, so that the scramblers of both sides start over together
+public class WSTcpResumableClient extends WSTcpClient {
+    protected static final int replayCapacity = 1024*1024;
+    protected static final long maxRetryDelayNanos = TimeUnit.SECONDS.toNanos(5);
+
+    protected final WebSocketContainer container;
+    protected final URI uri;
+    protected final boolean scramble;
+    // the data from the input that the server did not acknowledge yet
+    protected ReplayBuffer replay;
+    // whether the server confirmed resuming in the last handshake
+    protected volatile boolean confirmed = false;
+    // when the server does not resume, a session like that of WSTcpClient
+    protected volatile boolean plain = false;
+    // set by the first session message of the server
+    protected volatile String token;
+    protected volatile long graceNanos;
+    // the last session ended for good
+    protected volatile boolean failed = false;
+
+    // messages go out through the attached session under sendLock; the container thread does not
+    // wait for it to acknowledge, the thread holding it sends the acknowledgement instead
+    protected final ReentrantLock sendLock = new ReentrantLock();
+    protected final AtomicBoolean ackPending = new AtomicBoolean(false);
+    // guarded by sendLock
+    protected Session attached;
+    protected boolean inputEnded = false;
+    // what was output, written under this
+    protected volatile long received = 0;
+    protected volatile boolean receivedEnd = false;
+    protected volatile long acked = 0;
+
+    // connects to uri, which has neither a key nor compression added
+    public WSTcpResumableClient(PrintStream log, InputStream is, OutputStream os, WebSocketContainer container, URI uri, boolean scramble) {
+        super(log, is, os, null);
+        this.container = container;
+        this.uri = uri;
+        this.scramble = scramble;
+    }
+
+    @Override
+    protected void afterResponse(HandshakeResponse hr) {
+        super.afterResponse(hr);
+        List<String> values = hr.getHeaders().get(ReplayBuffer.confirmHeader);
+        confirmed = values != null && !values.isEmpty();
+    }
+
+    // connects, or connects again to resume the tunnel
+    public void connect() throws DeploymentException, IOException {
+        if (replay == null)
+            replay = new ReplayBuffer(Math.max(replayCapacity, sizer.getMaxFrame()));
+        URI target = uri;
+        if (scramble) {
+            long key = System.nanoTime();
+            target = withKey(target, key);
+            synchronized (this) {
+                recvScrambler = new Scrambler(~key);
+            }
+            sendLock.lock();
+            try {
+                sendScrambler = new Scrambler(key);
+            } finally {
+                sendLock.unlock();
+            }
+        }
+        if (compress)
+            target = withCompression(target);
+        String t = token;
+        if (t == null) {
+            target = withParam(target, ReplayBuffer.queryParam, ReplayBuffer.newTunnel);
+        } else {
+            target = withParam(target, ReplayBuffer.queryParam, t);
+            target = withParam(target, ReplayBuffer.offsetParam, Long.toString(received));
+        }
+        confirmed = false;
+        container.connectToServer(this, newConfig(), target);
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        if (!confirmed && token != null) {
+            log.println("Error: server no longer resumes");
+            failed = true;
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, "Cannot resume"));
+            } catch (IOException e) {
+                log.println("IO error on websocket: " + e.getMessage());
+            }
+            return;
+        }
+        if (!confirmed) {
+            log.println("Warning: server does not resume, continuing without");
+            plain = true;
+        }
+        super.onOpen(session, config);
+        if (plain)
+            return;
+        session.addMessageHandler(String.class, new MessageHandler.Whole<String>() {
+            @Override
+            public void onMessage(String text) {
+                if (!control(session, text)) {
+                    log.println("Error: invalid message from server: " + text);
+                    errors.incrementAndGet();
+                    failed = true;
+                    try {
+                        session.close(new CloseReason(CloseReason.CloseCodes.PROTOCOL_ERROR, "Invalid message"));
+                    } catch (IOException e) {
+                        log.println("IO error on websocket: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    // a text message from the server on session, false when invalid
+    protected boolean control(Session session, String text) {
+        String[] words = text.split(" ", -1);
+        try {
+            if (words[0].equals("session") && words.length == 4) {
+                token = words[1];
+                graceNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(words[2]));
+                return attachSession(session, Long.parseLong(words[3]));
+            }
+            if (words[0].equals("ack") && (words.length == 2 || (words.length == 3 && words[2].equals("end"))))
+                return replay.acked(Long.parseLong(words[1]), words.length == 3);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return false;
+    }
+
+    // sends through session from now on, starting with what the server did not receive of what
+    // was sent before, the data from offset on
+    protected boolean attachSession(Session session, long offset) {
+        sendLock.lock();
+        try {
+            if (!replay.acked(offset, false))
+                return false;
+            List<ByteBuffer> chunks = replay.from(offset, sizer.getMaxFrame());
+            if (chunks == null)
+                return false;
+            attached = session;
+            for (ByteBuffer chunk : chunks) {
+                if (!sendData(chunk))
+                    break;
+            }
+            if (inputEnded && attached != null)
+                sendEnd(attached);
+            // tell what was received, also when that is the end
+            ackPending.set(true);
+        } finally {
+            sendLock.unlock();
+        }
+        flushAcks();
+        return true;
+    }
+
+    // guarded by sendLock; sends data as one message, false when the session was lost
+    protected boolean sendData(ByteBuffer data) {
+        ByteBuffer msg = compressor != null ? compressor.compress(data) : data;
+        metrics.frameUp(msg.remaining());
+        active();
+        if (sendScrambler != null)
+            sendScrambler.scramble(msg);
+        try {
+            attached.getBasicRemote().sendBinary(msg);
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            lost(e);
+            return false;
+        } finally {
+            if (msg != data)
+                BufferPool.shared.release(msg);
+        }
+    }
+
+    // guarded by sendLock
+    protected void sendEnd(Session session) {
+        try {
+            session.getBasicRemote().sendBinary(ByteBuffer.allocate(0));
+        } catch (IOException | IllegalStateException e) {
+            lost(e);
+        }
+    }
+
+    // guarded by sendLock; closes the attached session after a failed send, onClose resumes
+    protected void lost(Exception e) {
+        log.println("IO error on websocket: " + e.getMessage());
+        Session session = attached;
+        // the container may have called onClose already
+        if (session == null)
+            return;
+        attached = null;
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Resume"));
+        } catch (IOException ce) {
+            // closed already
+        }
+    }
+
+    // sends a pending acknowledgement, unless another thread holds sendLock: that one does
+    // after releasing it
+    protected void flushAcks() {
+        while (ackPending.get() && sendLock.tryLock()) {
+            try {
+                if (ackPending.getAndSet(false) && attached != null) {
+                    // the count is final once ended
+                    boolean end = receivedEnd;
+                    long offset = received;
+                    acked = offset;
+                    try {
+                        attached.getBasicRemote().sendText("ack " + offset + (end ? " end" : ""));
+                    } catch (IOException | IllegalStateException e) {
+                        lost(e);
+                    }
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    protected void send(ByteBuffer data) throws IOException {
+        if (plain) {
+            super.send(data);
+            return;
+        }
+        try {
+            if (!replay.awaitRoom(data.remaining()))
+                return;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        sendLock.lock();
+        try {
+            replay.append(data.duplicate());
+            if (attached != null)
+                sendData(data);
+        } finally {
+            sendLock.unlock();
+        }
+        flushAcks();
+    }
+
+    @Override
+    protected void sendEnd() throws IOException {
+        if (plain) {
+            super.sendEnd();
+            return;
+        }
+        sendLock.lock();
+        try {
+            inputEnded = true;
+            replay.finish();
+            if (attached != null)
+                sendEnd(attached);
+        } finally {
+            sendLock.unlock();
+        }
+        flushAcks();
+    }
+
+    // the compressor of each connection is closed in onClose
+    @Override
+    protected void readerDone() {
+    }
+
+    @Override
+    protected boolean isOpen() {
+        return plain ? super.isOpen() : toFinish.getCount() > 0;
+    }
+
+    // guarded by this
+    @Override
+    protected void output(ByteBuffer msg) throws IOException {
+        int length = msg.remaining();
+        super.output(msg);
+        if (plain)
+            return;
+        received += length;
+        if (received - acked >= ReplayBuffer.ackInterval) {
+            ackPending.set(true);
+            flushAcks();
+        }
+    }
+
+    // guarded by this
+    @Override
+    protected void outputEnd() throws IOException {
+        super.outputEnd();
+        if (plain)
+            return;
+        receivedEnd = true;
+        ackPending.set(true);
+        flushAcks();
+    }
+
+    // whether the server ended the tunnel, rather than the websocket dropping
+    protected static boolean isFinal(CloseReason c) {
+        CloseReason.CloseCode code = c.getCloseCode();
+        return code == CloseReason.CloseCodes.NORMAL_CLOSURE || code == CloseReason.CloseCodes.CANNOT_ACCEPT
+            || code == CloseReason.CloseCodes.UNEXPECTED_CONDITION || code == CloseReason.CloseCodes.VIOLATED_POLICY
+            || code == CloseReason.CloseCodes.PROTOCOL_ERROR;
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason c) {
+        if (plain) {
+            super.onClose(session, c);
+            return;
+        }
+        sendLock.lock();
+        try {
+            if (attached == session)
+                attached = null;
+            if (compressor != null) {
+                compressor.close();
+                compressor = null;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        if (failed || token == null || isFinal(c)) {
+            replay.close();
+            super.onClose(session, c);
+            return;
+        }
+        metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        if (watch != null)
+            watch.cancel();
+        synchronized (this) {
+            if (decompressor != null) {
+                decompressor.close();
+                decompressor = null;
+            }
+        }
+        log.println("Websocket closed: " + c + ", resuming");
+        Threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                resume();
+            }
+        }, virtualThreads).start();
+    }
+
+    // connects again until that succeeds or the grace period is over
+    protected void resume() {
+        long deadline = System.nanoTime() + graceNanos;
+        long delay = TimeUnit.MILLISECONDS.toNanos(250);
+        while (true) {
+            try {
+                connect();
+                return;
+            } catch (DeploymentException | IOException e) {
+                log.println("Could not resume: " + e.getMessage());
+            }
+            if (System.nanoTime() + delay - deadline > 0)
+                break;
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            delay = Math.min(2 * delay, maxRetryDelayNanos);
+        }
+        log.println("Error: could not resume the tunnel in time");
+        errors.incrementAndGet();
+        metrics.error();
+        replay.close();
+        toFinish.countDown();
+    }
+}
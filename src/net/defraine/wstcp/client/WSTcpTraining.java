@@ -0,0 +1,112 @@
+package net.defraine.wstcp.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+// a training run of the client for its class data sharing archive, see the Makefile: one session
+// over loopback to a stand-in for the server, which answers the end of input with a message and
+// the end of its output, like a destination that sends a line and closes
+public class WSTcpTraining implements Runnable {
+    protected static final String acceptGuid = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    protected static final byte[] greeting = "wstcp\n".getBytes(StandardCharsets.US_ASCII);
+
+    protected final ServerSocket server;
+
+    public WSTcpTraining() throws IOException {
+        // by name, so that the run looks up a host like a real one
+        server = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+    }
+
+    @Override
+    public void run() {
+        try (Socket sock = server.accept()) {
+            serve(sock);
+        } catch (IOException e) {
+            System.err.println("Training server: " + e.getMessage());
+        }
+    }
+
+    protected void serve(Socket sock) throws IOException {
+        DataInputStream in = new DataInputStream(sock.getInputStream());
+        OutputStream out = sock.getOutputStream();
+        String key = null;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key"))
+                key = line.substring(colon + 1).trim();
+        }
+        if (key == null)
+            throw new IOException("no websocket handshake");
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: upgrade\r\n"
+                   + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        // the messages of the client up to its end of input, an empty binary message
+        while (true) {
+            int opcode = in.readUnsignedByte() & 0x0f;
+            if (readPayload(in) == 0 && opcode == 0x2)
+                break;
+        }
+        writeFrame(out, 0x2, greeting);
+        writeFrame(out, 0x2, new byte[0]);
+        // normal closure
+        writeFrame(out, 0x8, new byte[] { 0x03, (byte)0xe8 });
+        out.flush();
+        // the close frame of the client
+        in.readUnsignedByte();
+        readPayload(in);
+    }
+
+    protected static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.readUnsignedByte()) != '\n') {
+            if (b != '\r')
+                line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    protected static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + acceptGuid).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-1 should be supported", e);
+        }
+    }
+
+    // skips the rest of a masked client frame, returns its payload length
+    protected static long readPayload(DataInputStream in) throws IOException {
+        long length = in.readUnsignedByte() & 0x7f;
+        if (length == 126)
+            length = in.readUnsignedShort();
+        else if (length == 127)
+            length = in.readLong();
+        in.readFully(new byte[(int)(4 + length)]);
+        return length;
+    }
+
+    protected static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        out.write(0x80 | opcode);
+        out.write(payload.length);
+        out.write(payload);
+    }
+
+    public static void main(String[] args) throws IOException {
+        WSTcpTraining training = new WSTcpTraining();
+        Thread thread = new Thread(training, "wstcp-training");
+        thread.setDaemon(true);
+        thread.start();
+        WSTcpClient.main(new String[] { "ws://localhost:" + training.server.getLocalPort() + "/training" });
+    }
+}
@@ -0,0 +1,335 @@
+package net.defraine.wstcp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+
+// opens the connections to one TCP destination; the address of its host is reused for dnsTtl,
+// and with a pool size, connections are opened ahead so that a session does not wait for them
+public class Connector {
+    protected final ServletContext context;
+    protected final String host;
+    protected final int port;
+    protected final long dnsTtlNanos;
+    protected final long connectTimeoutNanos;
+
+    // the last resolved address, replaced as a whole
+    protected volatile Resolved resolved;
+
+    protected final int poolSize;
+    protected final long maxAgeNanos;
+    protected final boolean check;
+    protected final LinkedBlockingDeque<Pooled> pool = new LinkedBlockingDeque<>();
+    protected final Object poolChanged = new Object();
+    protected Thread filler;
+
+    // for choosing between destinations, see Destinations
+    protected final AtomicInteger active = new AtomicInteger(0);
+    protected volatile long connectNanos = -1;       // moving average, -1 until measured
+    protected volatile long downUntil;
+    protected volatile boolean down = false;
+
+    protected static class Resolved {
+        protected final InetSocketAddress address;
+        protected final long at = System.nanoTime();
+
+        protected Resolved(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    protected static class Pooled {
+        protected final SocketChannel channel;
+        protected final long opened = System.nanoTime();
+
+        protected Pooled(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public Connector(ServletContext context, String host, int port, EndpointSettings settings) {
+        this.context = context;
+        this.host = host;
+        this.port = port;
+        this.dnsTtlNanos = settings.getDnsTtlNanos();
+        this.connectTimeoutNanos = settings.getConnectTimeoutNanos();
+        this.poolSize = settings.getPoolSize();
+        this.maxAgeNanos = settings.getPoolMaxAgeNanos();
+        this.check = settings.isPoolCheck();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
+    // the cached address when it did not expire, else null; does not block
+    public InetSocketAddress cached() {
+        Resolved r = resolved;
+        if (r == null || System.nanoTime() - r.at >= dnsTtlNanos)
+            return null;
+        return r.address;
+    }
+
+    // the address of the destination, resolved again when the cached one expired, which blocks
+    // on the lookup; throws UnresolvedAddressException, like SocketChannel.open does
+    public InetSocketAddress resolve() {
+        InetSocketAddress a = cached();
+        if (a != null)
+            return a;
+        a = new InetSocketAddress(host, port);
+        if (a.isUnresolved())
+            throw new UnresolvedAddressException();
+        resolved = new Resolved(a);
+        return a;
+    }
+
+    // resolve again on the next connect, e.g. when the host moved
+    protected void forget() {
+        resolved = null;
+    }
+
+    public long getConnectTimeoutNanos() {
+        return connectTimeoutNanos;
+    }
+
+    protected void measured(long time) {
+        long average = connectNanos;
+        connectNanos = average < 0 ? time : average + (time - average) / 8;
+    }
+
+    // a new connection, within the connect timeout
+    protected SocketChannel open() throws IOException {
+        long start = System.nanoTime();
+        InetSocketAddress a = resolve();
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(a, (int)TimeUnit.NANOSECONDS.toMillis(connectTimeoutNanos));
+        } catch (IOException e) {
+            channel.close();
+            forget();
+            throw e;
+        }
+        measured(System.nanoTime() - start);
+        return channel;
+    }
+
+    // a usable connection from the pool, or null
+    protected SocketChannel takePooled() {
+        Pooled p;
+        SocketChannel channel = null;
+        while ((p = pool.pollFirst()) != null) {
+            if (isFresh(p)) {
+                channel = p.channel;
+                break;
+            }
+            discard(p);
+        }
+        if (poolSize > 0) {
+            synchronized (poolChanged) {
+                poolChanged.notifyAll();
+            }
+        }
+        return channel;
+    }
+
+    // a connected channel in blocking mode, from the pool when it has a usable one;
+    // the caller calls release when it closes the channel
+    public SocketChannel connect() throws IOException {
+        SocketChannel channel = takePooled();
+        if (channel == null)
+            channel = open();
+        active.incrementAndGet();
+        return channel;
+    }
+
+    // for the selector threads: a connected channel from the pool in non-blocking mode, or null
+    public SocketChannel takeNonBlocking() throws IOException {
+        SocketChannel channel = takePooled();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            active.incrementAndGet();
+        }
+        return channel;
+    }
+
+    // a connect that does not block, for the selector threads: a new channel in non-blocking
+    // mode to a, from cached or resolve, which is connected once finishConnect returns true;
+    // the caller closes it after the connect timeout, and calls release when it closes a connected one
+    public SocketChannel startConnect(InetSocketAddress a) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(a))
+                active.incrementAndGet();
+        } catch (IOException e) {
+            channel.close();
+            forget();
+            throw e;
+        }
+        return channel;
+    }
+
+    // gives up on a connect from startConnect that did not finish in time
+    public void timedOut(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        forget();
+    }
+
+    // completes a connect from startConnect at startNanos, when the channel is connectable
+    public boolean finishConnect(SocketChannel channel, long startNanos) throws IOException {
+        try {
+            if (!channel.finishConnect())
+                return false;
+        } catch (IOException e) {
+            channel.close();
+            forget();
+            throw e;
+        }
+        measured(System.nanoTime() - startNanos);
+        active.incrementAndGet();
+        return true;
+    }
+
+    // a connection that was handed out is closed
+    public void release() {
+        active.decrementAndGet();
+    }
+
+    // the connections handed out that are still open
+    public int getActive() {
+        return active.get();
+    }
+
+    // the average time to open a connection, or -1 when none was opened yet
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    // take out of rotation for downNanos after a failed connect
+    public void failed(long downNanos) {
+        downUntil = System.nanoTime() + downNanos;
+        down = true;
+    }
+
+    public boolean isDown() {
+        if (down && System.nanoTime() - downUntil >= 0)
+            down = false;
+        return down;
+    }
+
+    // not too old, and when checking, neither closed by the destination nor sent anything,
+    // as the session would miss what the destination sent
+    protected boolean isFresh(Pooled p) {
+        if (!p.channel.isOpen() || System.nanoTime() - p.opened >= maxAgeNanos)
+            return false;
+        if (!check)
+            return true;
+        try {
+            p.channel.configureBlocking(false);
+            int n = p.channel.read(ByteBuffer.allocate(1));
+            p.channel.configureBlocking(true);
+            return n == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    protected void discard(Pooled p) {
+        try {
+            p.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    // keeps the pool filled with fresh connections
+    protected void fillPool() {
+        while (true) {
+            // take each out while checking it, as connect may take it meanwhile
+            for (int n = pool.size(); n > 0; --n) {
+                Pooled p = pool.pollFirst();
+                if (p == null)
+                    break;
+                if (isFresh(p))
+                    pool.addLast(p);
+                else
+                    discard(p);
+            }
+            long wait = maxAgeNanos;
+            if (pool.size() < poolSize) {
+                try {
+                    pool.addLast(new Pooled(open()));
+                    continue;
+                } catch (UnresolvedAddressException e) {
+                    context.log("pool for " + this + ": could not resolve");
+                    wait = TimeUnit.SECONDS.toNanos(1);
+                } catch (IOException e) {
+                    context.log("pool for " + this + ": could not connect: " + e.getMessage());
+                    wait = TimeUnit.SECONDS.toNanos(1);
+                }
+            } else {
+                Pooled oldest = pool.peekFirst();
+                if (oldest != null)
+                    wait = Math.max(0, oldest.opened + maxAgeNanos - System.nanoTime());
+                // look for connections that the destination closed meanwhile
+                if (check)
+                    wait = Math.min(wait, TimeUnit.SECONDS.toNanos(1));
+            }
+            synchronized (poolChanged) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(poolChanged, Math.max(wait, 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // starts filling the pool, when configured
+    public void start() {
+        if (poolSize == 0)
+            return;
+        filler = new Thread("wstcp-pool " + this) {
+            @Override
+            public void run() {
+                fillPool();
+            }
+        };
+        filler.setDaemon(true);
+        filler.start();
+    }
+
+    public void close() {
+        if (filler != null) {
+            filler.interrupt();
+            try {
+                filler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            filler = null;
+        }
+        Pooled p;
+        while ((p = pool.pollFirst()) != null)
+            discard(p);
+    }
+}
@@ -0,0 +1,135 @@
+package net.defraine.wstcp.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+
+// the TCP destinations of an endpoint; a connect tries them in the order of the strategy,
+// and a destination that fails to connect is tried last for a while
+public class Destinations {
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_ACTIVE, LATENCY
+    }
+
+    protected final ServletContext context;
+    protected final List<Connector> connectors;
+    protected final Strategy strategy;
+    protected final long downNanos;
+    protected final AtomicInteger next = new AtomicInteger(0);
+
+    public Destinations(ServletContext context, List<Connector> connectors, EndpointSettings settings) {
+        this.context = context;
+        this.connectors = connectors;
+        this.strategy = settings.getStrategy();
+        this.downNanos = settings.getDownTimeNanos();
+    }
+
+    public List<Connector> getConnectors() {
+        return connectors;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Connector c : connectors) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // the order in which to try the destinations for a new connection
+    protected List<Connector> order() {
+        List<Connector> up = new ArrayList<>();
+        List<Connector> down = new ArrayList<>();
+        for (Connector c : connectors)
+            (c.isDown() ? down : up).add(c);
+        // start at a different one each time, so that ties are spread
+        Collections.rotate(up, -Math.floorMod(next.getAndIncrement(), Math.max(1, up.size())));
+        if (strategy == Strategy.LEAST_ACTIVE) {
+            Collections.sort(up, Comparator.comparingInt(Connector::getActive));
+        } else if (strategy == Strategy.LATENCY && up.size() > 1) {
+            // pick the first with a weight inversely proportional to its connect time,
+            // a destination without a measurement is tried first
+            double[] weights = new double[up.size()];
+            double total = 0;
+            int chosen = -1;
+            for (int i = 0; i < up.size() && chosen == -1; ++i) {
+                long nanos = up.get(i).getConnectNanos();
+                if (nanos < 0)
+                    chosen = i;
+                weights[i] = 1.0 / Math.max(nanos, 1000);
+                total += weights[i];
+            }
+            if (chosen == -1) {
+                double r = ThreadLocalRandom.current().nextDouble(total);
+                for (chosen = 0; chosen < up.size() - 1; ++chosen) {
+                    r -= weights[chosen];
+                    if (r < 0)
+                        break;
+                }
+            }
+            Collections.swap(up, 0, chosen);
+        }
+        up.addAll(down);
+        return up;
+    }
+
+    // a connection from connect, the caller releases its connector when it closes the channel
+    public static class Connection {
+        public final Connector connector;
+        public final SocketChannel channel;
+
+        protected Connection(Connector connector, SocketChannel channel) {
+            this.connector = connector;
+            this.channel = channel;
+        }
+    }
+
+    // a connected channel in blocking mode, to the first destination that accepts
+    public Connection connect() throws IOException {
+        RuntimeException unresolved = null;
+        IOException failure = null;
+        for (Connector c : order()) {
+            try {
+                return new Connection(c, c.connect());
+            } catch (UnresolvedAddressException e) {
+                unresolved = e;
+                failure = null;
+            } catch (IOException e) {
+                failure = e;
+                unresolved = null;
+            }
+            failed(c);
+        }
+        if (unresolved != null)
+            throw unresolved;
+        throw failure;
+    }
+
+    // a connect to c failed, it is tried after the others for a while
+    public void failed(Connector c) {
+        if (connectors.size() > 1) {
+            context.log("destination " + c + " failed, trying others first for " + downNanos / 1000000000L + " s");
+            c.failed(downNanos);
+        }
+    }
+
+    public void start() {
+        for (Connector c : connectors)
+            c.start();
+    }
+
+    public void close() {
+        for (Connector c : connectors)
+            c.close();
+    }
+}
@@ -0,0 +1,251 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.Compressor;
+import net.defraine.wstcp.FrameSizer;
+import net.defraine.wstcp.ReplayBuffer;
+import net.defraine.wstcp.TokenBucket;
+
+import java.util.List;
+import java.util.Map;
+import javax.websocket.Session;
+
+// optional settings of an endpoint, given as name=value items in the config file
+public class EndpointSettings {
+    protected boolean nio = false;
+    protected boolean virtualThreads = false;
+    protected int minFrame = FrameSizer.defaultMinFrame;
+    protected int maxFrame = FrameSizer.defaultMaxFrame;
+    protected int flushDelay = 0;
+    protected int highWater = 256*1024;
+    protected int lowWater = 64*1024;
+    protected boolean compress = true;
+    protected int poolSize = 0;
+    protected int poolMaxAge = 60;
+    protected boolean poolCheck = true;
+    protected int dnsTtl = 30;
+    protected int connectTimeout = 10;
+    protected Destinations.Strategy strategy = Destinations.Strategy.ROUND_ROBIN;
+    protected int downTime = 30;
+    protected int rate = 0;
+    protected int endpointRate = 0;
+    protected int resume = 0;
+    protected int replayBuffer = 1024*1024;
+    protected int ping = 0;
+    protected int idle = 0;
+    protected int maxStreams = 100;
+
+    public boolean isNio() {
+        return nio;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public FrameSizer newFrameSizer() {
+        return new FrameSizer(minFrame, Math.max(minFrame, maxFrame), flushDelay * 1000000L);
+    }
+
+    // whether to compress, for the query parameters of a session
+    public boolean acceptsCompression(Map<String, List<String>> params) {
+        List<String> values = params.get(Compressor.queryParam);
+        return compress && values != null && values.contains(Compressor.method);
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public long getPoolMaxAgeNanos() {
+        return poolMaxAge * 1000000000L;
+    }
+
+    public boolean isPoolCheck() {
+        return poolCheck;
+    }
+
+    public long getDnsTtlNanos() {
+        return dnsTtl * 1000000000L;
+    }
+
+    public long getConnectTimeoutNanos() {
+        return connectTimeout * 1000000000L;
+    }
+
+    public Destinations.Strategy getStrategy() {
+        return strategy;
+    }
+
+    public long getDownTimeNanos() {
+        return downTime * 1000000000L;
+    }
+
+    // bytes per second in each direction per session, or 0 for no limit
+    public int getRate() {
+        return rate;
+    }
+
+    // the same, for all sessions of the endpoint together
+    public int getEndpointRate() {
+        return endpointRate;
+    }
+
+    // seconds to keep the connection of a resumable session after the websocket dropped,
+    // or 0 when sessions cannot resume
+    public int getResume() {
+        return resume;
+    }
+
+    // whether a session with these query parameters resumes, see ReplayBuffer
+    public boolean acceptsResume(Map<String, List<String>> params) {
+        List<String> values = params.get(ReplayBuffer.queryParam);
+        return resume > 0 && values != null && values.size() == 1;
+    }
+
+    public int getReplayBuffer() {
+        return replayBuffer;
+    }
+
+    // seconds without data after which a session is pinged, or 0 for no pings
+    public long getPingNanos() {
+        return ping * 1000000000L;
+    }
+
+    // seconds without data after which a session is closed, or 0 to keep idle sessions
+    public long getIdleNanos() {
+        return idle * 1000000000L;
+    }
+
+    // whether the sessions go on the idle wheel
+    public boolean isWatched() {
+        return ping > 0 || idle > 0;
+    }
+
+    // streams a session of a mux endpoint may have open at once
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public ReceiveBudget newReceiveBudget(Session session) {
+        return new ReceiveBudget(session, highWater, lowWater);
+    }
+
+    protected static int parseInt(String name, String value, int min, int max) throws IllegalArgumentException {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+        if (result < min || result > max)
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+        return result;
+    }
+
+    public static int parseRate(String name, String value) throws IllegalArgumentException {
+        try {
+            return TokenBucket.parseRate(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + " must be a number of bytes per second, with an optional k or m");
+        }
+    }
+
+    public void set(String name, String value) throws IllegalArgumentException {
+        if (name.equals("io")) {
+            if (value.equals("blocking"))
+                nio = false;
+            else if (value.equals("nio"))
+                nio = true;
+            else
+                throw new IllegalArgumentException("io must be blocking or nio");
+        } else if (name.equals("threads")) {
+            if (value.equals("platform"))
+                virtualThreads = false;
+            else if (value.equals("virtual"))
+                virtualThreads = true;
+            else
+                throw new IllegalArgumentException("threads must be platform or virtual");
+        } else if (name.equals("minframe")) {
+            minFrame = parseInt(name, value, 1024, 1024*1024);
+        } else if (name.equals("maxframe")) {
+            maxFrame = parseInt(name, value, 1024, 1024*1024);
+        } else if (name.equals("flushdelay")) {
+            flushDelay = parseInt(name, value, 0, 1000);
+        } else if (name.equals("compress")) {
+            if (value.equals("on"))
+                compress = true;
+            else if (value.equals("off"))
+                compress = false;
+            else
+                throw new IllegalArgumentException("compress must be on or off");
+        } else if (name.equals("pool")) {
+            poolSize = parseInt(name, value, 0, 1000);
+        } else if (name.equals("maxage")) {
+            poolMaxAge = parseInt(name, value, 1, 86400);
+        } else if (name.equals("poolcheck")) {
+            if (value.equals("on"))
+                poolCheck = true;
+            else if (value.equals("off"))
+                poolCheck = false;
+            else
+                throw new IllegalArgumentException("poolcheck must be on or off");
+        } else if (name.equals("dnsttl")) {
+            dnsTtl = parseInt(name, value, 0, 86400);
+        } else if (name.equals("connecttimeout")) {
+            connectTimeout = parseInt(name, value, 1, 600);
+        } else if (name.equals("balance")) {
+            if (value.equals("roundrobin"))
+                strategy = Destinations.Strategy.ROUND_ROBIN;
+            else if (value.equals("leastactive"))
+                strategy = Destinations.Strategy.LEAST_ACTIVE;
+            else if (value.equals("latency"))
+                strategy = Destinations.Strategy.LATENCY;
+            else
+                throw new IllegalArgumentException("balance must be roundrobin, leastactive or latency");
+        } else if (name.equals("downtime")) {
+            downTime = parseInt(name, value, 1, 86400);
+        } else if (name.equals("rate")) {
+            rate = parseRate(name, value);
+        } else if (name.equals("endpointrate")) {
+            endpointRate = parseRate(name, value);
+        } else if (name.equals("resume")) {
+            resume = parseInt(name, value, 0, 86400);
+        } else if (name.equals("replaybuffer")) {
+            replayBuffer = parseInt(name, value, 64*1024, 64*1024*1024);
+        } else if (name.equals("ping")) {
+            ping = parseInt(name, value, 0, 86400);
+        } else if (name.equals("idle")) {
+            idle = parseInt(name, value, 0, 7*86400);
+        } else if (name.equals("streams")) {
+            maxStreams = parseInt(name, value, 1, 100000);
+        } else if (name.equals("highwater")) {
+            highWater = parseInt(name, value, 1024, 64*1024*1024);
+        } else if (name.equals("lowwater")) {
+            lowWater = parseInt(name, value, 0, 64*1024*1024);
+        } else {
+            throw new IllegalArgumentException("unknown option " + name);
+        }
+    }
+
+    // checks the options that depend on each other, once all are set
+    public void validate() throws IllegalArgumentException {
+        if (lowWater > highWater)
+            throw new IllegalArgumentException("lowwater must not exceed highwater");
+        if (resume > 0 && nio)
+            throw new IllegalArgumentException("resume needs io=blocking");
+        if (resume > 0 && replayBuffer < maxFrame)
+            throw new IllegalArgumentException("replaybuffer must be at least maxframe");
+    }
+
+    // checks the options for a udp endpoint, which carries datagrams as they come
+    public void validateDatagram() throws IllegalArgumentException {
+        if (nio)
+            throw new IllegalArgumentException("udp needs io=blocking");
+        if (resume > 0)
+            throw new IllegalArgumentException("udp cannot resume");
+        if (poolSize > 0)
+            throw new IllegalArgumentException("udp has no pool");
+        if (rate > 0 || endpointRate > 0)
+            throw new IllegalArgumentException("udp has no rate limit");
+    }
+}
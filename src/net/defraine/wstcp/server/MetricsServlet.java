@@ -0,0 +1,31 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.TunnelMetrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// serves the metrics of the endpoints in the Prometheus text format
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+    // the context attribute where the listener puts the metrics by path
+    public static final String metricsAttribute = "net.defraine.wstcp.metrics";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        @SuppressWarnings("unchecked")
+        Map<String, TunnelMetrics> metrics = (Map<String, TunnelMetrics>)getServletContext().getAttribute(metricsAttribute);
+        if (metrics == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "no metrics");
+            return;
+        }
+        resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter out = resp.getWriter();
+        TunnelMetrics.writePrometheus(out, "path", metrics);
+        out.flush();
+    }
+}
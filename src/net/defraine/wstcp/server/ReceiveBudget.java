@@ -0,0 +1,87 @@
+package net.defraine.wstcp.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import javax.websocket.Session;
+
+// counts the bytes received from the websocket that are not yet written to the socket; above the
+// high watermark the session stops reading, until the count drops to the low watermark
+public class ReceiveBudget {
+    protected Session session;
+    protected final int highWater;
+    protected final int lowWater;
+    // suspend and resume of Tomcat's WsSession, or null: then the container thread waits
+    protected final Method suspend;
+    protected final Method resume;
+
+    // guarded by this
+    protected long bytes = 0;
+    protected boolean suspended = false;
+    protected boolean closed = false;
+
+    public ReceiveBudget(Session session, int highWater, int lowWater) {
+        this.session = session;
+        this.highWater = highWater;
+        this.lowWater = lowWater;
+        Method suspend = null;
+        Method resume = null;
+        try {
+            suspend = session.getClass().getMethod("suspend");
+            resume = session.getClass().getMethod("resume");
+        } catch (NoSuchMethodException e) {
+            suspend = null;
+        }
+        this.suspend = suspend;
+        this.resume = suspend != null ? resume : null;
+    }
+
+    protected void invoke(Method method) {
+        try {
+            method.invoke(session);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("could not " + method.getName() + " session", e);
+        }
+    }
+
+    // called from the container thread, with data that was queued
+    // (resume dispatches the reading to another container thread, so this lock is not reentered)
+    public synchronized void added(int length) throws InterruptedException {
+        bytes += length;
+        if (bytes <= highWater || suspended || closed)
+            return;
+        suspended = true;
+        if (suspend != null) {
+            invoke(suspend);
+            return;
+        }
+        while (suspended && !closed)
+            wait();
+    }
+
+    // called when queued data was written
+    public synchronized void removed(int length) {
+        bytes -= length;
+        if (bytes > lowWater || !suspended)
+            return;
+        suspended = false;
+        if (resume != null)
+            invoke(resume);
+        else
+            notifyAll();
+    }
+
+    // releases a waiting container thread, when the session ends
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    // keeps counting for the session that resumed a tunnel, see ResumableTunnel; the session
+    // of the same container stops reading on its next message while above the high watermark
+    public synchronized void moveTo(Session session) {
+        this.session = session;
+        suspended = false;
+        closed = false;
+        notifyAll();
+    }
+}
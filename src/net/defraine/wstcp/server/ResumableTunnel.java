@@ -0,0 +1,461 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.BufferPool;
+import net.defraine.wstcp.FrameSizer;
+import net.defraine.wstcp.ReplayBuffer;
+import net.defraine.wstcp.Threads;
+import net.defraine.wstcp.TokenBucket;
+import net.defraine.wstcp.TunnelMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.ServletContext;
+
+// the connection to the destination of a resumable session, which outlives its websocket: when
+// that drops, the connection is kept for the grace period, for the client to connect again with
+// the token of the tunnel; the data that the other side did not receive is then sent again
+public class ResumableTunnel {
+    protected static final SecureRandom random = new SecureRandom();
+    protected static final AtomicInteger ids = new AtomicInteger(0);
+
+    protected final ServletContext context;
+    protected final int id = ids.incrementAndGet();
+    protected final String token;
+    protected final String path;
+    protected final SocketChannel channel;
+    protected final Connector connector;
+    protected final EndpointSettings settings;
+    protected final TunnelMetrics metrics;
+    protected final Map<String, ResumableTunnel> tunnels;
+    protected final ScheduledExecutorService timer;
+    protected final TokenBucket[] upLimits;
+    protected final TokenBucket[] downLimits;
+    protected final int maxFrame;
+    // the data from the socket that the client did not acknowledge yet
+    protected final ReplayBuffer replay;
+    // the data from the websocket, for the writer
+    protected final LinkedBlockingQueue<ByteBuffer> received = new LinkedBlockingQueue<>();
+    protected final ByteBuffer endOfStream = ByteBuffer.allocate(0);
+    protected final ReceiveBudget budget;
+    protected final CountDownLatch written = new CountDownLatch(1);
+    protected final CountDownLatch delivered = new CountDownLatch(1);
+    protected Thread reader;
+    protected Thread writer;
+
+    // messages go out through the attached session under sendLock; a container thread does not
+    // wait for it to acknowledge, the thread holding it sends the acknowledgement instead
+    protected final ReentrantLock sendLock = new ReentrantLock();
+    protected final AtomicBoolean ackPending = new AtomicBoolean(false);
+    // guarded by sendLock
+    protected WSTcpResumableEndpoint attached;
+    protected ScheduledFuture<?> expiry;
+    protected boolean complete = false;
+    protected boolean closed = false;
+
+    // the session whose messages count, set under sendLock
+    protected volatile WSTcpResumableEndpoint receiving;
+    // what came from the websocket, written by the container thread of receiving
+    protected volatile long upReceived = 0;
+    protected volatile boolean upEnded = false;
+    protected volatile long upAcked = 0;
+
+    // for the session of endpoint, which connected channel
+    public ResumableTunnel(WSTcpResumableEndpoint endpoint, Map<String, ResumableTunnel> tunnels, ScheduledExecutorService timer) {
+        this.context = endpoint.context;
+        this.path = endpoint.path;
+        this.channel = endpoint.channel;
+        // the tunnel closes the channel, not the endpoint
+        synchronized (endpoint) {
+            this.connector = endpoint.connector;
+            endpoint.connector = null;
+        }
+        this.settings = endpoint.settings;
+        this.metrics = endpoint.metrics;
+        this.tunnels = tunnels;
+        this.timer = timer;
+        this.upLimits = endpoint.upLimits;
+        this.downLimits = endpoint.downLimits;
+        this.maxFrame = settings.newFrameSizer().getMaxFrame();
+        this.replay = new ReplayBuffer(settings.getReplayBuffer());
+        this.budget = settings.newReceiveBudget(endpoint.session);
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        this.token = sb.toString();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    protected void log(String message) {
+        context.log("tunnel " + id + ": " + message);
+    }
+
+    // attaches the session that opened the tunnel, and starts relaying
+    public void start(WSTcpResumableEndpoint endpoint) {
+        tunnels.put(token, this);
+        log("opened for session " + endpoint.session.getId());
+        attach(endpoint, 0);
+        writer = Threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        ByteBuffer data = received.take();
+                        if (data == endOfStream) {
+                            channel.shutdownOutput();
+                            written.countDown();
+                            return;
+                        }
+                        int length = data.remaining();
+                        TokenBucket.acquire(length, upLimits);
+                        while (data.hasRemaining())
+                            channel.write(data);
+                        BufferPool.shared.release(data);
+                        budget.removed(length);
+                    }
+                } catch (InterruptedException e) {
+                    // see close
+                } catch (IOException e) {
+                    fail("IO error writing to socket: " + e.getMessage());
+                } finally {
+                    ByteBuffer data;
+                    while ((data = received.poll()) != null)
+                        BufferPool.shared.release(data);
+                }
+            }
+        }, settings.isVirtualThreads());
+        writer.start();
+        reader = Threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                FrameSizer sizer = settings.newFrameSizer();
+                ByteBuffer buf = BufferPool.shared.acquire(sizer.getMaxFrame());
+                try {
+                    InputStream available;
+                    try {
+                        available = channel.socket().getInputStream();
+                    } catch (IOException e) {
+                        fail("IO error on socket: " + e.getMessage());
+                        return;
+                    }
+                    boolean eof = false;
+                    while (!eof) {
+                        buf.clear();
+                        try {
+                            eof = WSTcpEndpoint.readFrame(channel, available, sizer, buf);
+                        } catch (IOException e) {
+                            fail("IO error reading from socket: " + e.getMessage());
+                            return;
+                        }
+                        buf.flip();
+                        if (buf.hasRemaining()) {
+                            int length = buf.remaining();
+                            TokenBucket.acquire(length, downLimits);
+                            if (!replay.awaitRoom(length))
+                                return;
+                            sizer.sent(length);
+                            send(buf, false);
+                        }
+                    }
+                    send(buf, true);
+                    // close once both directions are done, and the client has all data
+                    written.await();
+                    delivered.await();
+                    finish();
+                } catch (InterruptedException e) {
+                    // see close
+                } finally {
+                    BufferPool.shared.release(buf);
+                    log("exiting reader thread");
+                }
+            }
+        }, settings.isVirtualThreads());
+        reader.start();
+    }
+
+    // attaches the session of endpoint, which received offset bytes; sends what it misses, the
+    // data starting at offset, after telling how much was received from the client;
+    // false when the tunnel is closed or offset is not what was sent
+    public boolean attach(WSTcpResumableEndpoint endpoint, long offset) {
+        sendLock.lock();
+        try {
+            if (closed || !replay.acked(offset, false))
+                return false;
+            List<ByteBuffer> chunks = replay.from(offset, maxFrame);
+            if (chunks == null)
+                return false;
+            if (attached != null) {
+                log("session " + attached.session.getId() + " replaced");
+                attached.displace();
+            }
+            if (expiry != null) {
+                expiry.cancel(false);
+                expiry = null;
+            }
+            budget.moveTo(endpoint.session);
+            attached = endpoint;
+            receiving = endpoint;
+            boolean sent = endpoint.sendText("session " + token + " " + settings.getResume() + " " + upReceived);
+            for (ByteBuffer chunk : chunks)
+                sent = sent && endpoint.sendData(chunk);
+            if (replay.isFinished())
+                sent = sent && endpoint.sendEnd();
+            if (!sent) {
+                lost(endpoint);
+            } else if (complete) {
+                attached = null;
+                close();
+                endpoint.closeNormal();
+            }
+            if (upEnded)
+                ackPending.set(true);
+        } finally {
+            sendLock.unlock();
+        }
+        flushAcks();
+        return true;
+    }
+
+    // adds data from the socket to the replay buffer, which has room for it, and sends it when a
+    // session is attached; with end, marks the end of stream instead
+    protected void send(ByteBuffer data, boolean end) {
+        sendLock.lock();
+        try {
+            if (closed)
+                return;
+            if (end)
+                replay.finish();
+            else
+                replay.append(data.duplicate());
+            if (attached != null && !(end ? attached.sendEnd() : attached.sendData(data)))
+                lost(attached);
+        } finally {
+            sendLock.unlock();
+        }
+        flushAcks();
+    }
+
+    // sends a pending acknowledgement, unless another thread holds sendLock: that one does
+    // after releasing it
+    protected void flushAcks() {
+        while (ackPending.get() && sendLock.tryLock()) {
+            try {
+                if (ackPending.getAndSet(false) && attached != null) {
+                    // the count is final once ended
+                    boolean end = upEnded;
+                    long offset = upReceived;
+                    upAcked = offset;
+                    if (!attached.sendText("ack " + offset + (end ? " end" : "")))
+                        lost(attached);
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    // data from the websocket of endpoint, ignored when another session took over
+    public void received(WSTcpResumableEndpoint endpoint, ByteBuffer data) throws IOException {
+        if (receiving != endpoint || upEnded)
+            return;
+        int length = data.remaining();
+        ByteBuffer copy = BufferPool.shared.acquire(length);
+        copy.put(data);
+        copy.flip();
+        received.add(copy);
+        upReceived += length;
+        if (upReceived - upAcked >= ReplayBuffer.ackInterval) {
+            ackPending.set(true);
+            flushAcks();
+        }
+        try {
+            budget.added(length);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    public void receivedEnd(WSTcpResumableEndpoint endpoint) {
+        if (receiving != endpoint || upEnded)
+            return;
+        upEnded = true;
+        received.add(endOfStream);
+        ackPending.set(true);
+        flushAcks();
+    }
+
+    // a text message from the client, false when it is not a valid acknowledgement
+    public boolean control(String text) {
+        String[] words = text.split(" ", -1);
+        if (words.length < 2 || words.length > 3 || !words[0].equals("ack") || (words.length == 3 && !words[2].equals("end")))
+            return false;
+        long offset;
+        try {
+            offset = Long.parseLong(words[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (!replay.acked(offset, words.length == 3))
+            return false;
+        if (replay.isDone())
+            delivered.countDown();
+        return true;
+    }
+
+    // guarded by sendLock; a send on the session of endpoint failed, close it for the client to resume
+    protected void lost(WSTcpResumableEndpoint endpoint) {
+        if (attached != endpoint)
+            return;
+        attached = null;
+        endpoint.displace();
+        expireLater();
+    }
+
+    // the session of endpoint closed; when normally before the tunnel completed, the client gave up
+    public void detached(WSTcpResumableEndpoint endpoint, boolean normal) {
+        sendLock.lock();
+        try {
+            if (attached != endpoint)
+                return;
+            attached = null;
+            if (normal) {
+                log("closed by client");
+                close();
+            } else {
+                expireLater();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // guarded by sendLock
+    protected void expireLater() {
+        if (closed || expiry != null)
+            return;
+        log("waiting " + settings.getResume() + " s for the client to resume");
+        expiry = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendLock.lock();
+                try {
+                    if (attached == null && !closed) {
+                        log("not resumed in time");
+                        close();
+                    }
+                } finally {
+                    sendLock.unlock();
+                }
+            }
+        }, settings.getResume(), TimeUnit.SECONDS);
+    }
+
+    // all data went both ways; close normally, or when the client is away, once it resumes
+    protected void finish() {
+        sendLock.lock();
+        try {
+            if (closed)
+                return;
+            WSTcpResumableEndpoint endpoint = attached;
+            if (endpoint == null) {
+                complete = true;
+                return;
+            }
+            attached = null;
+            close();
+            endpoint.closeNormal();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    protected void fail(String reason) {
+        sendLock.lock();
+        try {
+            if (closed)
+                return;
+            WSTcpResumableEndpoint endpoint = attached;
+            attached = null;
+            close();
+            if (endpoint != null) {
+                endpoint.closeFatal(reason);
+            } else {
+                log("fatal: " + reason);
+                metrics.error();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // the attached session was idle beyond the limit of the endpoint, which closes it
+    protected void evict() {
+        sendLock.lock();
+        try {
+            attached = null;
+            close();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // guarded by sendLock
+    protected void close() {
+        if (closed)
+            return;
+        closed = true;
+        tunnels.remove(token);
+        if (expiry != null)
+            expiry.cancel(false);
+        replay.close();
+        budget.close();
+        log("closing connection");
+        if (connector != null)
+            connector.release();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log("IO error while closing: " + e.getMessage());
+        }
+        if (reader != null && reader != Thread.currentThread())
+            reader.interrupt();
+        if (writer != null && writer != Thread.currentThread())
+            writer.interrupt();
+    }
+
+    // when the context is destroyed
+    public void shutdown() {
+        sendLock.lock();
+        try {
+            WSTcpResumableEndpoint endpoint = attached;
+            attached = null;
+            close();
+            if (endpoint != null)
+                endpoint.displace();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.TokenBucket;
+
+// one line of the config file: where the endpoint at a path connects to
+public class Route {
+    protected final String path;
+    protected final String spec;
+    protected final Destinations destinations;
+    protected final EndpointSettings settings;
+    protected final boolean datagram;
+    // shared by the sessions of the endpoint, or null
+    protected final TokenBucket upLimit;
+    protected final TokenBucket downLimit;
+
+    // spec is the rest of the line, destinations is null for a mux endpoint; a datagram route has
+    // one udp destination
+    public Route(String path, String spec, Destinations destinations, EndpointSettings settings, boolean datagram) {
+        this.path = path;
+        this.spec = spec;
+        this.destinations = destinations;
+        this.settings = settings;
+        this.datagram = datagram;
+        int rate = settings.getEndpointRate();
+        upLimit = rate > 0 ? new TokenBucket(rate) : null;
+        downLimit = rate > 0 ? new TokenBucket(rate) : null;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getSpec() {
+        return spec;
+    }
+
+    public boolean isMux() {
+        return destinations == null;
+    }
+
+    public boolean isDatagram() {
+        return datagram;
+    }
+
+    public Destinations getDestinations() {
+        return destinations;
+    }
+
+    public EndpointSettings getSettings() {
+        return settings;
+    }
+
+    public TokenBucket getUpLimit() {
+        return upLimit;
+    }
+
+    public TokenBucket getDownLimit() {
+        return downLimit;
+    }
+}
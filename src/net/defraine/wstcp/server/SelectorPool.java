@@ -0,0 +1,181 @@
+package net.defraine.wstcp.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+
+// a small, fixed set of selector threads shared by all non-blocking tunnels
+public class SelectorPool {
+
+    // attached to a selection key, called on the loop thread when the key is ready
+    public interface Handler {
+        void ready(SelectionKey key);
+    }
+
+    protected static class Timer implements Comparable<Timer> {
+        protected final long at;
+        protected final long seq;
+        protected final Runnable task;
+
+        protected Timer(long at, long seq, Runnable task) {
+            this.at = at;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            long d = at - other.at;
+            return d != 0 ? (d < 0 ? -1 : 1) : Long.compare(seq, other.seq);
+        }
+    }
+
+    public static class Loop implements Runnable {
+        protected final ServletContext context;
+        protected final Selector selector;
+        protected final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        protected final Thread thread;
+        protected volatile boolean closed = false;
+        // only used on the loop thread
+        protected final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        protected long timerSeq = 0;
+
+        protected Loop(ServletContext context, String name) throws IOException {
+            this.context = context;
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        public Selector getSelector() {
+            return selector;
+        }
+
+        // run a task on the loop thread, selection keys should only be modified from there
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        // run a task on the loop thread, after delayNanos
+        public void schedule(final Runnable task, long delayNanos) {
+            final long at = System.nanoTime() + delayNanos;
+            // on the loop thread, add it before the next select computes its timeout
+            if (Thread.currentThread() == thread) {
+                timers.add(new Timer(at, timerSeq++, task));
+                return;
+            }
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    timers.add(new Timer(at, timerSeq++, task));
+                }
+            });
+        }
+
+        protected void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                context.log("error in selector task", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    Timer first = timers.peek();
+                    if (first == null) {
+                        selector.select();
+                    } else {
+                        long wait = first.at - System.nanoTime();
+                        if (wait <= 0)
+                            selector.selectNow();
+                        else
+                            selector.select(Math.max(1, (wait + 999999) / 1000000));
+                    }
+                } catch (IOException e) {
+                    context.log("IO error in selector", e);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    runTask(task);
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().at - now <= 0)
+                    runTask(timers.poll().task);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        ((Handler)key.attachment()).ready(key);
+                    } catch (RuntimeException e) {
+                        context.log("error in selector handler", e);
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                context.log("IO error closing selector", e);
+            }
+        }
+
+        protected void close() {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+
+    // DNS lookups, which block, so that a slow name server does not hold up the loops
+    protected static final int resolverThreads = 4;
+
+    protected final Loop[] loops;
+    protected final AtomicInteger next = new AtomicInteger(0);
+    protected final ExecutorService resolver;
+
+    public SelectorPool(ServletContext context, int threads) throws IOException {
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; ++i)
+            loops[i] = new Loop(context, "wstcp-selector-" + i);
+        for (Loop loop : loops)
+            loop.thread.start();
+        resolver = Executors.newFixedThreadPool(resolverThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "wstcp-resolver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // for tasks that block, such as resolving a destination; they hand back to a loop with execute
+    public ExecutorService getResolver() {
+        return resolver;
+    }
+
+    // pick a loop for a new channel, round-robin
+    public Loop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    public void close() {
+        for (Loop loop : loops)
+            loop.close();
+        resolver.shutdownNow();
+    }
+}
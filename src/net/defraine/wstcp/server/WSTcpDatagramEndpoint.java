@@ -0,0 +1,193 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.Threads;
+import net.defraine.wstcp.TunnelMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import javax.servlet.ServletContext;
+import javax.websocket.CloseReason;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+// a session of a udp endpoint: every binary message is one datagram, in both directions; a
+// datagram goes out as soon as it is complete, there is no queue that a datagram waits in behind
+// others, and what the destination sends while the websocket is busy is dropped like on a
+// congested network; the client ends the session, there is no end of stream
+public class WSTcpDatagramEndpoint extends WSTcpEndpoint {
+    // the largest UDP payload
+    protected static final int maxDatagram = 65535;
+    // datagrams from the client waiting for the lookup of the destination; more are dropped
+    protected static final int maxWaiting = 64;
+
+    protected DatagramChannel datagrams;
+    // null until the destination is looked up, on the reader thread
+    protected volatile InetSocketAddress address;
+    // guarded by this, until address is set
+    protected final ArrayDeque<ByteBuffer> waiting = new ArrayDeque<ByteBuffer>();
+    protected long connectStart;
+
+    public WSTcpDatagramEndpoint(ServletContext context, Destinations destinations, EndpointSettings settings, TunnelMetrics metrics) {
+        super(context, destinations, settings, metrics);
+    }
+
+    @Override
+    protected void disposeSocket() {
+        if (datagrams != null && datagrams.isOpen()) {
+            log("closing datagram channel");
+            try {
+                datagrams.close();
+            } catch (IOException e) {
+                log("IO error while closing: " + e.getMessage());
+            }
+        }
+    }
+
+    // the channel is not connected, as a connected one does not carry empty datagrams; it only
+    // takes those from the destination; this does not block on the lookup, see resolve
+    @Override
+    protected boolean connect() {
+        connectStart = System.nanoTime();
+        try {
+            datagrams = DatagramChannel.open();
+            datagrams.bind(null);
+        } catch (IOException e) {
+            metrics.connectFailed();
+            closeFatal("Could not open datagram channel: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // looks up the destination on the reader thread, unless cached, and sends what waited for it
+    protected boolean resolve() {
+        Connector connector = destinations.getConnectors().get(0);
+        InetSocketAddress a;
+        try {
+            a = connector.resolve();
+        } catch (UnresolvedAddressException e) {
+            metrics.connectFailed();
+            closeFatal("Could not resolve");
+            return false;
+        }
+        metrics.connected(connectStart);
+        log("sending datagrams to " + a);
+        synchronized (this) {
+            try {
+                for (ByteBuffer datagram : waiting)
+                    datagrams.send(datagram, a);
+            } catch (IOException e) {
+                closeFatal("IO error writing datagram: " + e.getMessage());
+                return false;
+            } finally {
+                waiting.clear();
+                address = a;
+            }
+        }
+        return true;
+    }
+
+    // false when the datagram waits for the lookup, or was dropped
+    protected boolean resolved(ByteBuffer datagram) {
+        if (address != null)
+            return true;
+        synchronized (this) {
+            if (address != null)
+                return true;
+            if (waiting.size() < maxWaiting) {
+                ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+                copy.put(datagram).flip();
+                waiting.add(copy);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void onOpen(Session s, EndpointConfig ec) {
+        session = s;
+        openedNanos = metrics.sessionOpened();
+        if (!initScramblers())
+            return;
+        if (!connect())
+            return;
+        watchIdle();
+        // the container thread writes each datagram, which does not wait for the destination
+        session.addMessageHandler(ByteBuffer.class, new MessageHandler.Partial<ByteBuffer>() {
+            private final ByteBuffer datagram = ByteBuffer.allocate(maxDatagram);
+
+            @Override
+            public void onMessage(ByteBuffer msg, boolean last) {
+                if (recvScrambler != null)
+                    msg = recvScrambler.scramble(msg);
+                if (msg.remaining() > datagram.remaining()) {
+                    closeFatal("datagram too large");
+                    return;
+                }
+                datagram.put(msg);
+                if (!last)
+                    return;
+                datagram.flip();
+                metrics.frameUp(datagram.remaining());
+                active();
+                try {
+                    if (resolved(datagram))
+                        datagrams.send(datagram, address);
+                } catch (IOException e) {
+                    closeFatal("IO error writing datagram: " + e.getMessage());
+                } finally {
+                    datagram.clear();
+                }
+            }
+        });
+        reader = Threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                RemoteEndpoint.Basic remote = session.getBasicRemote();
+                ByteBuffer buf = ByteBuffer.allocateDirect(maxDatagram);
+                if (!resolve())
+                    return;
+                try {
+                    while (true) {
+                        buf.clear();
+                        try {
+                            if (!address.equals(datagrams.receive(buf)))
+                                continue;
+                        } catch (ClosedChannelException e) {
+                            // see onClose
+                            return;
+                        } catch (IOException e) {
+                            closeFatal("IO error reading datagram: " + e.getMessage());
+                            return;
+                        }
+                        buf.flip();
+                        metrics.frameDown(buf.remaining());
+                        active();
+                        remote.sendBinary(encode(buf));
+                    }
+                } catch (IOException e) {
+                    context.log("IO error on websocket", e);
+                } finally {
+                    log("exiting reader thread");
+                }
+            }
+        }, settings.isVirtualThreads());
+        reader.start();
+    }
+
+    @Override
+    public void onClose(Session s, CloseReason c) {
+        metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE)
+            log("Websocket closed: " + c);
+        unwatchIdle();
+        disposeSocket();
+    }
+}
@@ -1,14 +1,25 @@
 package net.defraine.wstcp.server;
 
+import net.defraine.wstcp.BufferPool;
+import net.defraine.wstcp.Compressor;
+import net.defraine.wstcp.Decompressor;
+import net.defraine.wstcp.FrameSizer;
+import net.defraine.wstcp.IdleWheel;
 import net.defraine.wstcp.Scrambler;
+import net.defraine.wstcp.Threads;
+import net.defraine.wstcp.TokenBucket;
+import net.defraine.wstcp.TunnelMetrics;
 
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.List;
 import javax.servlet.ServletContext;
 import javax.websocket.CloseReason;
@@ -19,18 +30,92 @@ import javax.websocket.RemoteEndpoint;
 import javax.websocket.Session;
 
 public class WSTcpEndpoint extends Endpoint {
+    // how long the writer waits for more data before it exits, see onOpen
+    protected static final long writerLingerNanos = TimeUnit.SECONDS.toNanos(1);
+
     protected final ServletContext context;
-    protected final String host;
-    protected final int port;
+    protected final Destinations destinations;
+    protected final EndpointSettings settings;
+    protected final TunnelMetrics metrics;
 
     protected Session session;
-    protected Socket sock;
+    protected long openedNanos;
+    // set by the thread that connects
+    protected volatile SocketChannel channel;
+    // the destination of channel until it is closed, guarded by this
+    protected Connector connector;
     protected Thread reader;
+    protected volatile Thread writer;
+    // whether a writer runs, guarded by the queue of onOpen
+    protected boolean writing = true;
+    protected ReceiveBudget budget;
+    protected Scrambler sendScrambler;
+    protected Scrambler recvScrambler;
+    protected Compressor compressor;
+    protected Decompressor decompressor;
+    // up is from the websocket to the socket
+    protected TokenBucket[] upLimits = new TokenBucket[0];
+    protected TokenBucket[] downLimits = new TokenBucket[0];
+    protected IdleWheel idleWheel;
+    protected IdleWheel.Watch watch;
 
-    public WSTcpEndpoint(ServletContext context, String host, int port) {
+    public WSTcpEndpoint(ServletContext context, Destinations destinations, EndpointSettings settings, TunnelMetrics metrics) {
         this.context = context;
-        this.host = host;
-        this.port = port;
+        this.destinations = destinations;
+        this.settings = settings;
+        this.metrics = metrics;
+    }
+
+    // must be set before the session opens
+    public void setRateLimits(TokenBucket[] upLimits, TokenBucket[] downLimits) {
+        this.upLimits = upLimits;
+        this.downLimits = downLimits;
+    }
+
+    // must be set before the session opens, for endpoints that ping or close idle sessions
+    public void setIdleWheel(IdleWheel idleWheel) {
+        this.idleWheel = idleWheel;
+    }
+
+    // puts the session on the idle wheel, once it relays
+    protected void watchIdle() {
+        if (idleWheel == null || !settings.isWatched())
+            return;
+        watch = new IdleWheel.Watch(session, settings.getPingNanos(), settings.getIdleNanos()) {
+            @Override
+            protected void expired(boolean idle) {
+                closeIdle(idle);
+            }
+        };
+        idleWheel.add(watch);
+    }
+
+    // data went either way
+    protected void active() {
+        IdleWheel.Watch w = watch;
+        if (w != null)
+            w.active();
+    }
+
+    protected void unwatchIdle() {
+        if (watch != null)
+            watch.cancel();
+    }
+
+    // closes a session that was idle beyond the limit, or whose client stopped answering pings;
+    // onClose disposes the socket
+    protected void closeIdle(boolean idle) {
+        if (!session.isOpen())
+            return;
+        log(idle ? "closing, idle" : "closing, no answer to ping");
+        try {
+            if (idle)
+                session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Idle"));
+            else
+                session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "No pong"));
+        } catch (IOException e) {
+            context.log("IO error on websocket", e);
+        }
     }
 
     protected void log(String message) {
@@ -38,6 +123,7 @@ public class WSTcpEndpoint extends Endpoint {
     }
 
     protected void closeFatal(String reason) {
+        metrics.error();
         if (session.isOpen()) {
             log("closing for fatal: " + reason);
             try {
@@ -53,22 +139,40 @@ public class WSTcpEndpoint extends Endpoint {
     }
 
     protected void disposeSocket() {
-        if (sock.isConnected() && !sock.isClosed()) {
+        if (channel != null && channel.isOpen()) {
             log("closing connection");
             try {
-                sock.close();
+                closeChannel();
             } catch (IOException e) {
                 log("IO error while closing: " + e.getMessage());
             }
         }
     }
 
-    @Override
-    public void onOpen(Session s, EndpointConfig ec) {
-        session = s;
-        final Scrambler sendScrambler;
-        final Scrambler recvScrambler;
-        List<String> keyParams = s.getRequestParameterMap().get("key");
+    // closes channel, which no longer counts as active for its destination
+    protected void closeChannel() throws IOException {
+        Connector c;
+        synchronized (this) {
+            c = connector;
+            connector = null;
+        }
+        if (c != null)
+            c.release();
+        channel.close();
+    }
+
+    // the destination that channel is connected to, for logging
+    protected static String remoteAddress(SocketChannel channel) {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+
+    // sets up the scramblers from the key parameter, returns false when the session was closed
+    protected boolean initScramblers() {
+        List<String> keyParams = session.getRequestParameterMap().get("key");
         if (keyParams != null && keyParams.size() == 1) {
             String keyParam = keyParams.iterator().next();
             log("got key: " + keyParam);
@@ -82,84 +186,256 @@ public class WSTcpEndpoint extends Endpoint {
                 } catch (IOException e) {
                     context.log("IO error on websocket", e);
                 }
-                return;
+                return false;
             }
             sendScrambler = new Scrambler(~key);
             recvScrambler = new Scrambler(key);
-        } else {
-            sendScrambler = null;
-            recvScrambler = null;
         }
-        final InputStream is;
-        final OutputStream os;
+        return true;
+    }
+
+    // sets up compression when the client asked for it, see the configurator in the listener
+    protected void initCompression() {
+        if (settings.acceptsCompression(session.getRequestParameterMap())) {
+            log("compressing");
+            compressor = new Compressor();
+            decompressor = new Decompressor();
+        }
+    }
+
+    // the message to send for data, compressed when enabled; the caller releases it when it is not data
+    protected ByteBuffer encode(ByteBuffer data) {
+        ByteBuffer msg = compressor != null ? compressor.compress(data) : data;
+        if (sendScrambler != null)
+            sendScrambler.scramble(msg);
+        return msg;
+    }
+
+    // connects to a destination, returns false when the session was closed
+    protected boolean connect() {
+        long connectStart = System.nanoTime();
+        Destinations.Connection c;
         try {
-            sock = new Socket(host, port);
-            is = sock.getInputStream();
-            os = sock.getOutputStream();
-        } catch (UnknownHostException e) {
+            c = destinations.connect();
+        } catch (UnresolvedAddressException e) {
+            metrics.connectFailed();
             closeFatal("Could not resolve");
-            return;
+            return false;
         } catch (IOException e) {
+            // interrupted when the client left, see onClose
+            if (e instanceof ClosedByInterruptException || !session.isOpen())
+                return false;
+            metrics.connectFailed();
             closeFatal("Could not connect: " + e.getMessage());
-            return;
+            return false;
+        }
+        synchronized (this) {
+            connector = c.connector;
+        }
+        channel = c.channel;
+        metrics.connected(connectStart);
+        log("connected to " + remoteAddress(channel));
+        return true;
+    }
+
+    // reads the next frame from channel into buf, which the caller cleared;
+    // returns true at the end of stream, possibly with a last frame in buf
+    protected static boolean readFrame(SocketChannel channel, InputStream available, FrameSizer sizer, ByteBuffer buf) throws IOException {
+        buf.limit(sizer.frameSize());
+        if (channel.read(buf) == -1)
+            return true;
+        // add what follows right away, or within the flush delay in bulk mode
+        long frameStart = System.nanoTime();
+        while (buf.hasRemaining()) {
+            if (available.available() > 0) {
+                if (channel.read(buf) == -1)
+                    return true;
+            } else if (!sizer.linger(frameStart))
+                break;
         }
-        log("connected to " + host + ":" + port);
+        return false;
+    }
+
+    @Override
+    public void onOpen(Session s, EndpointConfig ec) {
+        session = s;
+        openedNanos = metrics.sessionOpened();
+        if (!initScramblers())
+            return;
+        initCompression();
+        watchIdle();
         CountDownLatch toFinish = new CountDownLatch(1);
 
-        session.addMessageHandler(byte[].class, new MessageHandler.Partial<byte[]>() {
-            private int totalLength = 0;
+        // the container thread queues what it receives, the writer puts it on the socket,
+        // so that a slow destination only holds up this session; the writer connects first,
+        // meanwhile the queue takes up to the high watermark; it only runs while there is data,
+        // an idle tunnel has just its reader
+        final LinkedBlockingQueue<ByteBuffer> received = new LinkedBlockingQueue<>();
+        final ByteBuffer endOfStream = ByteBuffer.allocate(0);
+        budget = settings.newReceiveBudget(session);
+        final Runnable drain = new Runnable() {
             @Override
-            public void onMessage(byte[] msg, boolean last) {
+            public void run() {
+                boolean done = true;
                 try {
-                    if (msg.length > 0) {
-                        if (recvScrambler != null)
-                            recvScrambler.scramble(msg, 0, msg.length);
-                        os.write(msg);
-                        totalLength += msg.length;
-                    }
-                    if (last) {
-                        if (totalLength > 0) {
-                            os.flush();
-                            totalLength = 0;
-                        } else {
-                            sock.shutdownOutput();
+                    while (true) {
+                        ByteBuffer data = received.poll(writerLingerNanos, TimeUnit.NANOSECONDS);
+                        if (data == null) {
+                            synchronized (received) {
+                                if (received.isEmpty()) {
+                                    writing = false;
+                                    done = false;
+                                    return;
+                                }
+                            }
+                            continue;
+                        }
+                        if (data == endOfStream) {
+                            channel.shutdownOutput();
                             toFinish.countDown();
+                            return;
                         }
+                        int length = data.remaining();
+                        TokenBucket.acquire(length, upLimits);
+                        while (data.hasRemaining())
+                            channel.write(data);
+                        BufferPool.shared.release(data);
+                        budget.removed(length);
                     }
+                } catch (InterruptedException e) {
+                    // see onClose: already closed for abnormal reason
                 } catch (IOException e) {
                     closeFatal("IO error writing to socket: " + e.getMessage());
+                } finally {
+                    if (done) {
+                        ByteBuffer data;
+                        while ((data = received.poll()) != null)
+                            BufferPool.shared.release(data);
+                    }
+                }
+            }
+        };
+        // starts a writer for what was just queued, unless one runs
+        final Runnable wake = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (received) {
+                    if (writing)
+                        return;
+                    writing = true;
+                }
+                writer = Threads.newThread(drain, settings.isVirtualThreads());
+                writer.start();
+            }
+        };
+        final Decompressor.Sink queue = new Decompressor.Sink() {
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                int length = data.remaining();
+                ByteBuffer copy = BufferPool.shared.acquire(length);
+                copy.put(data);
+                copy.flip();
+                received.add(copy);
+                wake.run();
+                try {
+                    budget.added(length);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        session.addMessageHandler(ByteBuffer.class, new MessageHandler.Partial<ByteBuffer>() {
+            private int totalLength = 0;
+            @Override
+            public void onMessage(ByteBuffer msg, boolean last) {
+                int length = msg.remaining();
+                if (length > 0) {
+                    if (recvScrambler != null)
+                        msg = recvScrambler.scramble(msg);
+                    try {
+                        if (decompressor != null)
+                            decompressor.decompress(msg, totalLength == 0, queue);
+                        else
+                            queue.write(msg);
+                    } catch (InterruptedIOException e) {
+                        return;
+                    } catch (IOException e) {
+                        closeFatal("invalid data: " + e.getMessage());
+                        return;
+                    }
+                    totalLength += length;
+                }
+                if (last) {
+                    if (totalLength > 0) {
+                        metrics.frameUp(totalLength);
+                        active();
+                        totalLength = 0;
+                    } else {
+                        received.add(endOfStream);
+                        wake.run();
+                    }
                 }
             }
         });
-        reader = new Thread() {
-            private static final int bufferSize = 4*1024;
-
+        writer = Threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!connect()) {
+                    if (compressor != null)
+                        compressor.close();
+                    return;
+                }
+                // the session may have closed meanwhile, see onClose
+                if (!session.isOpen()) {
+                    disposeSocket();
+                    return;
+                }
+                reader.start();
+                drain.run();
+            }
+        }, settings.isVirtualThreads());
+        reader = Threads.newThread(new Runnable() {
             @Override
             public void run() {
                 RemoteEndpoint.Basic remote = session.getBasicRemote();
+                FrameSizer sizer = settings.newFrameSizer();
+                ByteBuffer buf = BufferPool.shared.acquire(sizer.getMaxFrame());
                 try {
-                    byte[] buf = new byte[bufferSize];
-                    while (true) {
-                        int bytesRead;
+                    InputStream available = channel.socket().getInputStream();
+                    boolean eof = false;
+                    while (!eof) {
+                        buf.clear();
                         try {
-                            bytesRead = is.read(buf);
+                            eof = readFrame(channel, available, sizer, buf);
                         } catch (IOException e) {
                             closeFatal("IO error reading from socket: " + e.getMessage());
                             return;
                         }
-                        if (bytesRead != -1) {
-                            // send a message when something to send
-                            if (bytesRead > 0) {
-                                if (sendScrambler != null)
-                                    sendScrambler.scramble(buf, 0, bytesRead);
-                                remote.sendBinary(ByteBuffer.wrap(buf, 0, bytesRead));
+                        buf.flip();
+                        // send a message when something to send
+                        if (buf.hasRemaining()) {
+                            try {
+                                TokenBucket.acquire(buf.remaining(), downLimits);
+                            } catch (InterruptedException e) {
+                                // see onClose: already closed for abnormal reason
+                                return;
+                            }
+                            sizer.sent(buf.remaining());
+                            ByteBuffer msg = encode(buf);
+                            metrics.frameDown(msg.remaining());
+                            active();
+                            try {
+                                remote.sendBinary(msg);
+                            } finally {
+                                if (msg != buf)
+                                    BufferPool.shared.release(msg);
                             }
-                        } else {
-                            // end-of-stream, send empty message marker, then terminate
-                            remote.sendBinary(ByteBuffer.wrap(buf, 0, 0));
-                            break;
                         }
                     }
+                    // end-of-stream, send empty message marker, then terminate
+                    buf.clear();
+                    buf.flip();
+                    remote.sendBinary(buf);
                     try {
                         toFinish.await();
                     } catch (InterruptedException e) {
@@ -168,7 +444,7 @@ public class WSTcpEndpoint extends Endpoint {
                     }
                     log("closing connection");
                     try {
-                        sock.close();
+                        closeChannel();
                     } catch (IOException e) {
                         closeFatal("IO error closing socket: " + e.getMessage());
                         return;
@@ -177,20 +453,30 @@ public class WSTcpEndpoint extends Endpoint {
                 } catch (IOException e) {
                     context.log("IO error on websocket", e);
                 } finally {
+                    BufferPool.shared.release(buf);
+                    if (compressor != null)
+                        compressor.close();
                     log("exiting reader thread");
                 }
             }
-        };
-        reader.start();
+        }, settings.isVirtualThreads());
+        writer.start();
     }
 
     @Override
     public void onClose(Session s, CloseReason c) {
+        metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        unwatchIdle();
         if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE) {
             log("Websocket closed: " + c);
             disposeSocket();
             if (reader != null) reader.interrupt();
+            if (writer != null) writer.interrupt();
         }
+        if (budget != null)
+            budget.close();
+        if (decompressor != null)
+            decompressor.close();
     }
 
 }
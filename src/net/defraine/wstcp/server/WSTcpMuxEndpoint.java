@@ -0,0 +1,106 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.MuxConnection;
+import net.defraine.wstcp.Threads;
+import net.defraine.wstcp.TunnelMetrics;
+
+import java.io.IOException;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletContext;
+import javax.websocket.CloseReason;
+import javax.websocket.EndpointConfig;
+import javax.websocket.Session;
+
+// many streams over one session, each opened to the route at the path it names
+public class WSTcpMuxEndpoint extends WSTcpEndpoint {
+    protected final AtomicReference<Map<String, Route>> routes;
+    protected MuxConnection mux;
+
+    public WSTcpMuxEndpoint(ServletContext context, EndpointSettings settings, TunnelMetrics metrics, AtomicReference<Map<String, Route>> routes) {
+        super(context, null, settings, metrics);
+        this.routes = routes;
+    }
+
+    @Override
+    public void onOpen(Session s, EndpointConfig ec) {
+        session = s;
+        openedNanos = metrics.sessionOpened();
+        if (!initScramblers())
+            return;
+        mux = new MuxConnection(session, sendScrambler, recvScrambler, settings.isVirtualThreads()) {
+            @Override
+            protected void log(String message) {
+                WSTcpMuxEndpoint.this.log(message);
+            }
+
+            @Override
+            protected void opened(int id, String path) {
+                openStream(id, path);
+            }
+
+            @Override
+            protected void active() {
+                WSTcpMuxEndpoint.this.active();
+            }
+        };
+        watchIdle();
+        mux.setMetrics(metrics, false);
+        mux.setRateLimits(downLimits, upLimits);
+    }
+
+    protected void openStream(int id, String path) {
+        final MuxConnection.Stream stream = mux.register(id);
+        if (stream == null) {
+            mux.protocolError("stream " + id + " already open");
+            return;
+        }
+        if (mux.getStreamCount() > settings.getMaxStreams()) {
+            stream.reset("too many streams");
+            return;
+        }
+        final Route route = routes.get().get(path);
+        if (route == null || route.isMux() || route.isDatagram()) {
+            stream.reset("no endpoint at " + path);
+            return;
+        }
+        // connect off the container thread, data that arrives meanwhile is queued
+        Threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                final Destinations.Connection c;
+                long connectStart = System.nanoTime();
+                try {
+                    c = route.getDestinations().connect();
+                } catch (UnresolvedAddressException e) {
+                    metrics.connectFailed();
+                    stream.reset("Could not resolve");
+                    return;
+                } catch (IOException e) {
+                    metrics.connectFailed();
+                    stream.reset("Could not connect: " + e.getMessage());
+                    return;
+                }
+                metrics.connected(connectStart);
+                log("stream " + id + ": connected to " + remoteAddress(c.channel));
+                stream.attach(c.channel, c.channel, new Runnable() {
+                    @Override
+                    public void run() {
+                        c.connector.release();
+                    }
+                });
+            }
+        }, settings.isVirtualThreads()).start();
+    }
+
+    @Override
+    public void onClose(Session s, CloseReason c) {
+        metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE)
+            log("Websocket closed: " + c);
+        unwatchIdle();
+        if (mux != null)
+            mux.closeAll();
+    }
+}
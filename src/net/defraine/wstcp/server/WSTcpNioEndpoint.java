@@ -0,0 +1,538 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.BufferPool;
+import net.defraine.wstcp.Decompressor;
+import net.defraine.wstcp.FrameSizer;
+import net.defraine.wstcp.TokenBucket;
+import net.defraine.wstcp.TunnelMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.ServletContext;
+import javax.websocket.CloseReason;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+// variant of WSTcpEndpoint that uses a non-blocking channel, serviced by a shared selector thread
+public class WSTcpNioEndpoint extends WSTcpEndpoint implements SelectorPool.Handler {
+    protected final SelectorPool selectorPool;
+
+    protected SelectorPool.Loop loop;
+    protected SelectionKey key;
+    protected ByteBuffer readBuf;
+    protected FrameSizer sizer;
+
+    // the connect in progress, on the loop thread; what the client sends meanwhile is pending
+    protected List<Connector> order;
+    protected int attempt = 0;
+    protected Connector connecting;
+    protected volatile SocketChannel connectingChannel;
+    protected long connectStart;
+    protected String connectFailure;
+
+    // data from the websocket that could not be written to the channel yet, guarded by itself
+    protected final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    protected boolean shutdownPending = false;
+    // whether the rate limits were charged for the first pending buffer, guarded by pending
+    protected boolean headPaid = false;
+
+    // half-close state, guarded by this
+    protected boolean inputDone = false;
+    protected boolean outputDone = false;
+
+    public WSTcpNioEndpoint(ServletContext context, Destinations destinations, EndpointSettings settings, TunnelMetrics metrics, SelectorPool selectorPool) {
+        super(context, destinations, settings, metrics);
+        this.selectorPool = selectorPool;
+    }
+
+    @Override
+    public void onOpen(Session s, EndpointConfig ec) {
+        session = s;
+        openedNanos = metrics.sessionOpened();
+        if (!initScramblers())
+            return;
+        initCompression();
+        watchIdle();
+        sizer = settings.newFrameSizer();
+        budget = settings.newReceiveBudget(session);
+        loop = selectorPool.next();
+        connectStart = System.nanoTime();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connectNext();
+            }
+        });
+
+        final Decompressor.Sink writer = new Decompressor.Sink() {
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                try {
+                    WSTcpNioEndpoint.this.write(data);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        session.addMessageHandler(ByteBuffer.class, new MessageHandler.Partial<ByteBuffer>() {
+            private int totalLength = 0;
+            @Override
+            public void onMessage(ByteBuffer msg, boolean last) {
+                try {
+                    int length = msg.remaining();
+                    if (length > 0) {
+                        if (recvScrambler != null)
+                            msg = recvScrambler.scramble(msg);
+                        if (decompressor != null)
+                            decompressor.decompress(msg, totalLength == 0, writer);
+                        else
+                            writer.write(msg);
+                        totalLength += length;
+                    }
+                    if (last) {
+                        if (totalLength > 0) {
+                            metrics.frameUp(totalLength);
+                            active();
+                            totalLength = 0;
+                        } else {
+                            shutdownOutput();
+                        }
+                    }
+                } catch (InterruptedIOException e) {
+                    // closed while waiting for the queue to drain
+                } catch (IOException e) {
+                    closeFatal("IO error writing to socket: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // on the loop thread: tries the next destination, in the order of the strategy, without
+    // waiting for it; a destination whose address is not cached is resolved off the loop first
+    protected void connectNext() {
+        if (order == null)
+            order = destinations.order();
+        while (attempt < order.size() && session.isOpen()) {
+            final Connector c = order.get(attempt++);
+            SocketChannel ch;
+            try {
+                ch = c.takeNonBlocking();
+                if (ch == null) {
+                    InetSocketAddress a = c.cached();
+                    if (a == null) {
+                        resolve(c);
+                        return;
+                    }
+                    ch = c.startConnect(a);
+                }
+            } catch (IOException e) {
+                connectFailure = "Could not connect: " + e.getMessage();
+                destinations.failed(c);
+                continue;
+            }
+            started(c, ch);
+            return;
+        }
+        if (!session.isOpen())
+            return;
+        metrics.connectFailed();
+        closeFatal(connectFailure);
+    }
+
+    // looks up the address of c on the resolver, then connects to it on the loop thread
+    protected void resolve(final Connector c) {
+        try {
+            selectorPool.getResolver().execute(new Runnable() {
+                @Override
+                public void run() {
+                    InetSocketAddress resolved = null;
+                    if (session.isOpen()) {
+                        try {
+                            resolved = c.resolve();
+                        } catch (UnresolvedAddressException e) {
+                            // see below
+                        }
+                    }
+                    final InetSocketAddress a = resolved;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            resolved(c, a);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    // on the loop thread, when the address of c was looked up, null when it could not be
+    protected void resolved(Connector c, InetSocketAddress a) {
+        if (!session.isOpen())
+            return;
+        if (a == null) {
+            connectFailure = "Could not resolve";
+            destinations.failed(c);
+            connectNext();
+            return;
+        }
+        SocketChannel ch;
+        try {
+            ch = c.startConnect(a);
+        } catch (IOException e) {
+            connectFailure = "Could not connect: " + e.getMessage();
+            destinations.failed(c);
+            connectNext();
+            return;
+        }
+        started(c, ch);
+    }
+
+    // on the loop thread, ch of c is connected or connecting; in the latter case waits for it,
+    // at most the connect timeout
+    protected void started(final Connector c, final SocketChannel ch) {
+        if (ch.isConnected()) {
+            connected(ch, c);
+            return;
+        }
+        connecting = c;
+        connectingChannel = ch;
+        try {
+            key = ch.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+        } catch (ClosedChannelException e) {
+            // disposed
+            return;
+        }
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (connectingChannel != ch || !session.isOpen())
+                    return;
+                connectingChannel = null;
+                c.timedOut(ch);
+                connectFailure = "Could not connect: Connect timed out";
+                destinations.failed(c);
+                connectNext();
+            }
+        }, c.getConnectTimeoutNanos());
+    }
+
+    // on the loop thread, when the channel of connecting is connectable
+    protected void finishConnect() {
+        SocketChannel ch = connectingChannel;
+        try {
+            if (!connecting.finishConnect(ch, connectStart))
+                return;
+        } catch (IOException e) {
+            connectingChannel = null;
+            connectFailure = "Could not connect: " + e.getMessage();
+            destinations.failed(connecting);
+            connectNext();
+            return;
+        }
+        connectingChannel = null;
+        connected(ch, connecting);
+    }
+
+    // on the loop thread, starts relaying to the destination of c; writes what is pending
+    protected void connected(SocketChannel ch, Connector c) {
+        metrics.connected(connectStart);
+        synchronized (this) {
+            connector = c;
+        }
+        int ops = SelectionKey.OP_READ;
+        synchronized (pending) {
+            channel = ch;
+            if (!pending.isEmpty() || shutdownPending)
+                ops |= SelectionKey.OP_WRITE;
+        }
+        log("connected to " + remoteAddress(ch));
+        // the session may have closed meanwhile, see onClose
+        if (!session.isOpen()) {
+            disposeSocket();
+            return;
+        }
+        try {
+            key = ch.register(loop.getSelector(), ops, this);
+        } catch (ClosedChannelException e) {
+            // already disposed
+        }
+    }
+
+    @Override
+    protected void disposeSocket() {
+        SocketChannel ch = connectingChannel;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                log("IO error while closing: " + e.getMessage());
+            }
+        }
+        super.disposeSocket();
+    }
+
+    protected void setInterest(final int ops, final boolean on) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (key != null && key.isValid())
+                    key.interestOps(on ? key.interestOps() | ops : key.interestOps() & ~ops);
+            }
+        });
+    }
+
+    // lets the loop write again once the rate limits allow it
+    protected final Runnable writeLater = new Runnable() {
+        @Override
+        public void run() {
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    };
+
+    // called from the container thread, writes what the channel and the rate limits accept,
+    // and queues a copy of the rest; before the channel connected, queues all of it
+    protected void write(ByteBuffer data) throws IOException, InterruptedException {
+        int queued;
+        synchronized (pending) {
+            if (pending.isEmpty() && channel != null) {
+                // when the limits allow it, write right away, else the loop writes it later
+                long wait = TokenBucket.reserve(data.remaining(), upLimits);
+                headPaid = true;
+                if (wait == 0) {
+                    channel.write(data);
+                    if (!data.hasRemaining())
+                        return;
+                    setInterest(SelectionKey.OP_WRITE, true);
+                } else {
+                    loop.schedule(writeLater, wait);
+                }
+            }
+            queued = data.remaining();
+            ByteBuffer copy = BufferPool.shared.acquire(queued);
+            copy.put(data);
+            copy.flip();
+            pending.add(copy);
+        }
+        budget.added(queued);
+    }
+
+    protected void shutdownOutput() throws IOException {
+        synchronized (pending) {
+            if (!pending.isEmpty() || channel == null) {
+                shutdownPending = true;
+                return;
+            }
+            channel.shutdownOutput();
+        }
+        outputFinished();
+    }
+
+    // called on the loop thread when the channel is writable again
+    protected void flush() throws IOException {
+        synchronized (pending) {
+            while (!pending.isEmpty()) {
+                ByteBuffer data = pending.peek();
+                if (!headPaid) {
+                    long wait = TokenBucket.reserve(data.remaining(), upLimits);
+                    headPaid = true;
+                    if (wait > 0) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        loop.schedule(writeLater, wait);
+                        return;
+                    }
+                }
+                int before = data.remaining();
+                channel.write(data);
+                budget.removed(before - data.remaining());
+                if (data.hasRemaining())
+                    return;
+                BufferPool.shared.release(pending.poll());
+                headPaid = false;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (!shutdownPending)
+                return;
+            channel.shutdownOutput();
+        }
+        outputFinished();
+    }
+
+    // called on the loop thread when the channel has data
+    protected void read() {
+        // the buffer is only held while a message is in flight, idle tunnels hold none
+        readBuf = BufferPool.shared.acquire(sizer.frameSize());
+        readBuf.limit(sizer.frameSize());
+        boolean eof = false;
+        try {
+            // take everything that is available, up to the frame size
+            while (readBuf.hasRemaining()) {
+                int bytesRead = channel.read(readBuf);
+                if (bytesRead == -1) {
+                    eof = true;
+                    break;
+                }
+                if (bytesRead == 0)
+                    break;
+            }
+        } catch (IOException e) {
+            BufferPool.shared.release(readBuf);
+            closeFatal("IO error reading from socket: " + e.getMessage());
+            return;
+        }
+        if (readBuf.position() == 0 && !eof) {
+            BufferPool.shared.release(readBuf);
+            return;
+        }
+        // no more reads until the message is sent; a close on another thread cancels the key
+        try {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            BufferPool.shared.release(readBuf);
+            return;
+        }
+        readBuf.flip();
+        if (!readBuf.hasRemaining()) {
+            BufferPool.shared.release(readBuf);
+            sendEndOfStream();
+            return;
+        }
+        sizer.sent(readBuf.remaining());
+        final long wait = TokenBucket.reserve(readBuf.remaining(), downLimits);
+        final ByteBuffer msg = encode(readBuf);
+        if (msg != readBuf)
+            BufferPool.shared.release(readBuf);
+        metrics.frameDown(msg.remaining());
+        active();
+        final boolean eofAfter = eof;
+        session.getAsyncRemote().sendBinary(msg, new SendHandler() {
+            @Override
+            public void onResult(SendResult result) {
+                BufferPool.shared.release(msg);
+                if (!result.isOK()) {
+                    closeFatal("IO error on websocket: " + result.getException().getMessage());
+                    return;
+                }
+                if (eofAfter)
+                    sendEndOfStream();
+                else if (wait > 0)
+                    loop.schedule(readLater, wait);
+                else
+                    setInterest(SelectionKey.OP_READ, true);
+            }
+        });
+    }
+
+    protected final Runnable readLater = new Runnable() {
+        @Override
+        public void run() {
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    };
+
+    // send empty message marker
+    protected void sendEndOfStream() {
+        session.getAsyncRemote().sendBinary(ByteBuffer.allocate(0), new SendHandler() {
+            @Override
+            public void onResult(SendResult result) {
+                if (!result.isOK()) {
+                    closeFatal("IO error on websocket: " + result.getException().getMessage());
+                    return;
+                }
+                inputFinished();
+            }
+        });
+    }
+
+    @Override
+    public void ready(SelectionKey k) {
+        if (k.isConnectable()) {
+            finishConnect();
+            return;
+        }
+        try {
+            if (k.isWritable())
+                flush();
+        } catch (IOException e) {
+            closeFatal("IO error writing to socket: " + e.getMessage());
+            return;
+        }
+        if (k.isValid() && k.isReadable())
+            read();
+    }
+
+    protected void inputFinished() {
+        synchronized (this) {
+            inputDone = true;
+            if (!outputDone)
+                return;
+        }
+        finish();
+    }
+
+    protected void outputFinished() {
+        synchronized (this) {
+            outputDone = true;
+            if (!inputDone)
+                return;
+        }
+        finish();
+    }
+
+    // both directions are half-closed
+    protected void finish() {
+        log("closing connection");
+        try {
+            closeChannel();
+        } catch (IOException e) {
+            closeFatal("IO error closing socket: " + e.getMessage());
+            return;
+        }
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, "Bye"));
+        } catch (IOException e) {
+            context.log("IO error on websocket", e);
+        }
+    }
+
+    @Override
+    public void onClose(Session s, CloseReason c) {
+        metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        if (c.getCloseCode() != CloseReason.CloseCodes.NORMAL_CLOSURE)
+            log("Websocket closed: " + c);
+        unwatchIdle();
+        disposeSocket();
+        if (budget != null)
+            budget.close();
+        if (decompressor != null)
+            decompressor.close();
+        if (compressor != null && loop != null) {
+            // on the loop thread, where it is used
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compressor.close();
+                }
+            });
+        } else if (compressor != null) {
+            compressor.close();
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package net.defraine.wstcp.server;
+
+import net.defraine.wstcp.BufferPool;
+import net.defraine.wstcp.Decompressor;
+import net.defraine.wstcp.ReplayBuffer;
+import net.defraine.wstcp.Threads;
+import net.defraine.wstcp.TunnelMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.servlet.ServletContext;
+import javax.websocket.CloseReason;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+// an endpoint whose sessions can resume a tunnel after the websocket dropped, see ResumableTunnel;
+// a session of a client that does not ask for it is a plain one
+public class WSTcpResumableEndpoint extends WSTcpEndpoint {
+    protected final String path;
+    protected final Map<String, ResumableTunnel> tunnels;
+    protected final ScheduledExecutorService timer;
+    // set once connected, guarded by this
+    protected volatile ResumableTunnel tunnel;
+    protected boolean closed = false;
+
+    public WSTcpResumableEndpoint(ServletContext context, Destinations destinations, EndpointSettings settings, TunnelMetrics metrics,
+                                  String path, Map<String, ResumableTunnel> tunnels, ScheduledExecutorService timer) {
+        super(context, destinations, settings, metrics);
+        this.path = path;
+        this.tunnels = tunnels;
+        this.timer = timer;
+    }
+
+    protected void refuse(String reason) {
+        log("closing, " + reason);
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, reason));
+        } catch (IOException e) {
+            context.log("IO error on websocket", e);
+        }
+    }
+
+    @Override
+    public void onOpen(Session s, EndpointConfig ec) {
+        Map<String, List<String>> params = s.getRequestParameterMap();
+        if (!settings.acceptsResume(params)) {
+            super.onOpen(s, ec);
+            return;
+        }
+        session = s;
+        openedNanos = metrics.sessionOpened();
+        if (!initScramblers())
+            return;
+        initCompression();
+        String token = params.get(ReplayBuffer.queryParam).get(0);
+        if (token.equals(ReplayBuffer.newTunnel)) {
+            // connect off the container thread; the client sends nothing before the session
+            // message of the tunnel, it keeps its data meanwhile
+            writer = Threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    open();
+                }
+            }, settings.isVirtualThreads());
+            writer.start();
+            return;
+        }
+        long offset = -1;
+        List<String> offsets = params.get(ReplayBuffer.offsetParam);
+        if (offsets != null && offsets.size() == 1) {
+            try {
+                offset = Long.parseLong(offsets.get(0));
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+        }
+        ResumableTunnel t = tunnels.get(token);
+        if (t == null || !t.getPath().equals(path) || offset < 0) {
+            refuse("unknown tunnel");
+            return;
+        }
+        tunnel = t;
+        watchIdle();
+        addHandlers();
+        if (!tunnel.attach(this, offset)) {
+            refuse("cannot resume");
+            return;
+        }
+        log("resumed tunnel " + tunnel.id);
+    }
+
+    // connects and starts a new tunnel, unless the session closed meanwhile
+    protected void open() {
+        if (!connect())
+            return;
+        synchronized (this) {
+            if (closed) {
+                disposeSocket();
+                return;
+            }
+            tunnel = new ResumableTunnel(this, tunnels, timer);
+        }
+        watchIdle();
+        addHandlers();
+        tunnel.start(this);
+    }
+
+    protected void addHandlers() {
+        final Decompressor.Sink sink = new Decompressor.Sink() {
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                tunnel.received(WSTcpResumableEndpoint.this, data);
+            }
+        };
+        session.addMessageHandler(ByteBuffer.class, new MessageHandler.Partial<ByteBuffer>() {
+            private int totalLength = 0;
+            @Override
+            public void onMessage(ByteBuffer msg, boolean last) {
+                int length = msg.remaining();
+                if (length > 0) {
+                    if (recvScrambler != null)
+                        msg = recvScrambler.scramble(msg);
+                    try {
+                        if (decompressor != null)
+                            decompressor.decompress(msg, totalLength == 0, sink);
+                        else
+                            sink.write(msg);
+                    } catch (InterruptedIOException e) {
+                        return;
+                    } catch (IOException e) {
+                        tunnel.fail("invalid data: " + e.getMessage());
+                        return;
+                    }
+                    totalLength += length;
+                }
+                if (last) {
+                    if (totalLength > 0) {
+                        metrics.frameUp(totalLength);
+                        active();
+                        totalLength = 0;
+                    } else {
+                        tunnel.receivedEnd(WSTcpResumableEndpoint.this);
+                    }
+                }
+            }
+        });
+        session.addMessageHandler(String.class, new MessageHandler.Whole<String>() {
+            @Override
+            public void onMessage(String text) {
+                if (!tunnel.control(text))
+                    tunnel.fail("invalid message: " + text);
+            }
+        });
+    }
+
+    // the sends below are called by the tunnel, under its send lock;
+    // they return false when the websocket failed
+
+    protected boolean sendData(ByteBuffer data) {
+        data = data.duplicate();
+        ByteBuffer msg = encode(data);
+        metrics.frameDown(msg.remaining());
+        active();
+        try {
+            session.getBasicRemote().sendBinary(msg);
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            log("IO error on websocket: " + e.getMessage());
+            return false;
+        } finally {
+            if (msg != data)
+                BufferPool.shared.release(msg);
+        }
+    }
+
+    protected boolean sendEnd() {
+        try {
+            session.getBasicRemote().sendBinary(ByteBuffer.allocate(0));
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            log("IO error on websocket: " + e.getMessage());
+            return false;
+        }
+    }
+
+    protected boolean sendText(String text) {
+        try {
+            session.getBasicRemote().sendText(text);
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            log("IO error on websocket: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // closes the session while the tunnel stays, for the client to resume it
+    protected void displace() {
+        if (!session.isOpen())
+            return;
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Resume"));
+        } catch (IOException e) {
+            log("IO error closing websocket: " + e.getMessage());
+        }
+    }
+
+    // an idle tunnel ends with its session, one whose client stopped answering stays for it to resume
+    @Override
+    protected void closeIdle(boolean idle) {
+        if (tunnel != null && idle)
+            tunnel.evict();
+        super.closeIdle(idle);
+    }
+
+    protected void closeNormal() {
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.NORMAL_CLOSURE, "Bye"));
+        } catch (IOException e) {
+            context.log("IO error on websocket", e);
+        }
+    }
+
+    @Override
+    public void onClose(Session s, CloseReason c) {
+        ResumableTunnel tunnel;
+        synchronized (this) {
+            closed = true;
+            tunnel = this.tunnel;
+        }
+        if (tunnel == null) {
+            super.onClose(s, c);
+            return;
+        }
+        metrics.sessionClosed(openedNanos, c.getCloseCode().getCode());
+        unwatchIdle();
+        boolean normal = c.getCloseCode() == CloseReason.CloseCodes.NORMAL_CLOSURE;
+        if (!normal)
+            log("Websocket closed: " + c);
+        // after this, the tunnel no longer sends through this session
+        tunnel.detached(this, normal);
+        if (compressor != null)
+            compressor.close();
+        if (decompressor != null)
+            decompressor.close();
+    }
+}
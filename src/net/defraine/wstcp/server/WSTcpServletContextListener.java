@@ -1,50 +1,311 @@
 package net.defraine.wstcp.server;
 
+import net.defraine.wstcp.Compressor;
+import net.defraine.wstcp.IdleWheel;
+import net.defraine.wstcp.ReplayBuffer;
+import net.defraine.wstcp.Threads;
+import net.defraine.wstcp.TokenBucket;
+import net.defraine.wstcp.TunnelMetrics;
+
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextListener;
 import javax.servlet.ServletContextEvent;
+import javax.websocket.CloseReason;
 import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.Session;
+import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerContainer;
 import javax.websocket.server.ServerEndpointConfig;
 
 public class WSTcpServletContextListener implements ServletContextListener {
     protected ServletContext context;
+    protected ServerContainer serverContainer;
+    protected volatile SelectorPool selectorPool;
+    // the endpoints by path, as last read from the config file; replaced as a whole on reload,
+    // so that a new session looks up its route without locking
+    protected final AtomicReference<Map<String, Route>> routes = new AtomicReference<>(Collections.<String, Route>emptyMap());
+    // the paths deployed in the container, they stay deployed when removed from the config file;
+    // guarded by this
+    protected final Set<String> deployed = new HashSet<>();
+    // the metrics by path, also registered as MBeans
+    protected final Map<String, TunnelMetrics> metrics = new ConcurrentHashMap<>();
+    protected final Map<String, ObjectName> mbeans = new ConcurrentHashMap<>();
+    // shared by all sessions, or null
+    protected TokenBucket globalUpLimit;
+    protected TokenBucket globalDownLimit;
+    protected WatchService watcher;
+    protected Thread watcherThread;
+    // the tunnels of resumable sessions by token, they stay when their endpoint is reloaded
+    protected final Map<String, ResumableTunnel> tunnels = new ConcurrentHashMap<>();
+    protected volatile ScheduledExecutorService timer;
+    protected volatile IdleWheel idleWheel;
+
+    protected static final String selectorThreadsParam = "wstcp.selectorThreads";
+    protected static final String globalRateParam = "wstcp.globalRate";
 
-    protected void deployWSTcpEndpoint(ServerContainer sc, String path, String host, int port) {
-        ServerEndpointConfig sec = ServerEndpointConfig.Builder.create(WSTcpEndpoint.class, path)
+    protected SelectorPool getSelectorPool() throws IOException {
+        if (selectorPool == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            String param = context.getInitParameter(selectorThreadsParam);
+            if (param != null) {
+                try {
+                    threads = Integer.parseInt(param);
+                } catch (NumberFormatException e) {
+                    context.log("invalid value for " + selectorThreadsParam + ": " + param);
+                }
+            }
+            selectorPool = new SelectorPool(context, Math.max(1, threads));
+            context.log("started " + threads + " selector threads");
+        }
+        return selectorPool;
+    }
+
+    // for the grace periods of resumable tunnels
+    protected ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "wstcp-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+
+    // for the pings and idle limits of all endpoints
+    protected IdleWheel getIdleWheel() {
+        if (idleWheel == null)
+            idleWheel = new IdleWheel("wstcp-idle");
+        return idleWheel;
+    }
+
+    protected TunnelMetrics newMetrics(String path) {
+        TunnelMetrics m = new TunnelMetrics();
+        try {
+            ObjectName name = new ObjectName("net.defraine.wstcp:type=Endpoint,context="
+                + ObjectName.quote(context.getContextPath()) + ",path=" + ObjectName.quote(path));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(m, name);
+            mbeans.put(path, name);
+        } catch (JMException e) {
+            context.log("could not register MBean for " + path + ": " + e.getMessage());
+        }
+        metrics.put(path, m);
+        return m;
+    }
+
+    // for a path that was removed from the config file, as the container cannot undeploy it
+    protected static class RemovedEndpoint extends WSTcpEndpoint {
+        public RemovedEndpoint(ServletContext context, TunnelMetrics metrics) {
+            super(context, null, new EndpointSettings(), metrics);
+        }
+
+        @Override
+        public void onOpen(Session s, EndpointConfig ec) {
+            session = s;
+            log("closing, endpoint removed");
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, "no endpoint"));
+            } catch (IOException e) {
+                context.log("IO error on websocket", e);
+            }
+        }
+
+        @Override
+        public void onClose(Session s, CloseReason c) {
+        }
+    }
+
+    // the buckets that apply to a session, of those that are not null
+    protected static TokenBucket[] limits(int sessionRate, TokenBucket endpointLimit, TokenBucket globalLimit) {
+        List<TokenBucket> limits = new ArrayList<>();
+        if (sessionRate > 0)
+            limits.add(new TokenBucket(sessionRate));
+        if (endpointLimit != null)
+            limits.add(endpointLimit);
+        if (globalLimit != null)
+            limits.add(globalLimit);
+        return limits.toArray(new TokenBucket[limits.size()]);
+    }
+
+    // the route of a session, in the user properties of its handshake
+    protected static final String routeProperty = "net.defraine.wstcp.route";
+
+    // a session at path; the handshake looks up its route once, for what it confirms, and onOpen
+    // builds the endpoint from that same route, so that a reload in between cannot switch it
+    protected class SessionEndpoint extends Endpoint {
+        protected final String path;
+        protected final TunnelMetrics endpointMetrics;
+        protected WSTcpEndpoint endpoint;
+
+        public SessionEndpoint(String path, TunnelMetrics endpointMetrics) {
+            this.path = path;
+            this.endpointMetrics = endpointMetrics;
+        }
+
+        @Override
+        public void onOpen(Session s, EndpointConfig ec) {
+            endpoint = newEndpoint(path, (Route)ec.getUserProperties().get(routeProperty), endpointMetrics);
+            endpoint.onOpen(s, ec);
+        }
+
+        @Override
+        public void onClose(Session s, CloseReason c) {
+            if (endpoint != null)
+                endpoint.onClose(s, c);
+        }
+
+        @Override
+        public void onError(Session s, Throwable t) {
+            if (endpoint != null)
+                endpoint.onError(s, t);
+        }
+    }
+
+    // an endpoint for a new session at path, with the route that its handshake looked up
+    protected WSTcpEndpoint newEndpoint(String path, Route route, TunnelMetrics endpointMetrics) {
+        if (route == null)
+            return new RemovedEndpoint(context, endpointMetrics);
+        EndpointSettings settings = route.getSettings();
+        WSTcpEndpoint endpoint;
+        if (route.isMux())
+            endpoint = new WSTcpMuxEndpoint(context, settings, endpointMetrics, routes);
+        else if (route.isDatagram())
+            endpoint = new WSTcpDatagramEndpoint(context, route.getDestinations(), settings, endpointMetrics);
+        else if (settings.isNio())
+            endpoint = new WSTcpNioEndpoint(context, route.getDestinations(), settings, endpointMetrics, selectorPool);
+        else if (settings.getResume() > 0)
+            endpoint = new WSTcpResumableEndpoint(context, route.getDestinations(), settings, endpointMetrics, path, tunnels, timer);
+        else
+            endpoint = new WSTcpEndpoint(context, route.getDestinations(), settings, endpointMetrics);
+        endpoint.setRateLimits(limits(settings.getRate(), route.getUpLimit(), globalUpLimit),
+                               limits(settings.getRate(), route.getDownLimit(), globalDownLimit));
+        endpoint.setIdleWheel(idleWheel);
+        return endpoint;
+    }
+
+    // guarded by this
+    protected boolean deploy(final String path) {
+        final TunnelMetrics endpointMetrics = newMetrics(path);
+        ServerEndpointConfig sec = ServerEndpointConfig.Builder.create(SessionEndpoint.class, path)
             .configurator(new ServerEndpointConfig.Configurator() {
                 @Override
                 public <T> T getEndpointInstance(Class<T> endpointClass) throws InstantiationException {
-                    assert endpointClass.equals(WSTcpEndpoint.class);
-                    WSTcpEndpoint endpoint = new WSTcpEndpoint(context, host, port);
-                    return endpointClass.cast(endpoint);
+                    assert endpointClass.equals(SessionEndpoint.class);
+                    return endpointClass.cast(new SessionEndpoint(path, endpointMetrics));
+                }
+
+                // sec is the config of this handshake only, and becomes that of its session
+                @Override
+                public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request, HandshakeResponse response) {
+                    Route route = routes.get().get(path);
+                    // none for a removed endpoint, the map may not take null
+                    if (route != null)
+                        sec.getUserProperties().put(routeProperty, route);
+                    // confirm compression, so that the client knows this server supports it
+                    if (route != null && !route.isMux() && !route.isDatagram() && route.getSettings().acceptsCompression(request.getParameterMap()))
+                        response.getHeaders().put(Compressor.confirmHeader, Collections.singletonList(Compressor.method));
+                    // likewise for resuming
+                    if (route != null && !route.isMux() && !route.isDatagram() && route.getSettings().acceptsResume(request.getParameterMap()))
+                        response.getHeaders().put(ReplayBuffer.confirmHeader, Collections.singletonList(String.valueOf(route.getSettings().getResume())));
                 }
             })
             .build();
+        if (!addEndpoint(serverContainer, sec))
+            return false;
+        deployed.add(path);
+        return true;
+    }
+
+    protected boolean addEndpoint(ServerContainer sc, ServerEndpointConfig sec) {
         try {
             sc.addEndpoint(sec);
-            context.log("registered endpoint at " + context.getContextPath() + path);
+            context.log("registered endpoint at " + context.getContextPath() + sec.getPath());
+            return true;
         } catch (DeploymentException de) {
             context.log("failed to deploy endpoint", de);
+            return false;
         }
     }
 
+    // a destination of the form host:port
+    protected Connector parseConnector(String destination, EndpointSettings settings) throws IllegalArgumentException {
+        int pos = destination.indexOf(":");
+        if (pos == -1)
+            throw new IllegalArgumentException("no port");
+        if (pos == 0)
+            throw new IllegalArgumentException("no host");
+        String host = destination.substring(0, pos);
+        int port;
+        try {
+            port = Integer.parseInt(destination.substring(pos+1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid port");
+        }
+        return new Connector(context, host, port, settings);
+    }
+
     protected static final String configFile = "/WEB-INF/server.conf";
+    // the destination of a udp endpoint, e.g. udp:myhost:53
+    protected static final String udpPrefix = "udp:";
 
-    @Override
-    public void contextInitialized(ServletContextEvent sce) {
-        context = sce.getServletContext();
-        ServerContainer sc = (ServerContainer)context.getAttribute(ServerContainer.class.getName());
-        InputStream is = context.getResourceAsStream(configFile);
+    // from disk when possible, as the container may cache resources
+    protected InputStream openConfig() {
+        String realPath = context.getRealPath(configFile);
+        if (realPath != null) {
+            try {
+                return Files.newInputStream(Paths.get(realPath));
+            } catch (IOException e) {
+                // e.g. being replaced, try the container
+            }
+        }
+        return context.getResourceAsStream(configFile);
+    }
+
+    // reads the routes from the config file into next, reusing those of current for lines that
+    // did not change; returns the number of lines with errors, or -1 when the file is missing
+    protected int readConfig(Map<String, Route> current, Map<String, Route> next) {
+        InputStream is = openConfig();
         if (is == null) {
             context.log("Could not access config file at " + configFile);
-            return;
+            return -1;
         }
+        int errors = 0;
         BufferedReader in = new BufferedReader(new InputStreamReader(is));
         try {
             String line;
@@ -55,36 +316,75 @@ public class WSTcpServletContextListener implements ServletContextListener {
                 if (line.isEmpty() || line.charAt(0) == '#')
                     continue;
                 String[] words = line.split("\\s+", -1);
-                if (words.length != 2) {
-                    context.log("parse error in config file line " + lineNr + ": need 2 items");
+                if (words.length < 2) {
+                    context.log("parse error in config file line " + lineNr + ": need at least 2 items");
+                    ++errors;
                     continue;
                 }
                 String path = words[0];
-                int pos = words[1].indexOf(":");
-                if (pos == -1) {
-                    context.log("parse error in config file line " + lineNr + ": no port");
+                if (path.charAt(0) != '/') {
+                    context.log("invalid entry in config file line " + lineNr + ": path must begin with /");
+                    ++errors;
                     continue;
                 }
-                if (pos == 0) {
-                    context.log("parse error in config file line " + lineNr + ": no host");
+                if (next.containsKey(path)) {
+                    context.log("invalid entry in config file line " + lineNr + ": path " + path + " repeated");
+                    ++errors;
                     continue;
                 }
-                String host = words[1].substring(0, pos);
-                int port;
-                try {
-                    port = Integer.parseInt(words[1].substring(pos+1));
-                } catch (NumberFormatException e) {
-                    context.log("parse error in config file line " + lineNr + ": invalid port");
+                String spec = line.substring(path.length()).trim();
+                Route old = current.get(path);
+                if (old != null && old.getSpec().equals(spec)) {
+                    next.put(path, old);
                     continue;
                 }
-                if (path.charAt(0) != '/') {
-                    context.log("invalid entry in config file line " + lineNr + ": path must begin with /");
+                EndpointSettings settings = new EndpointSettings();
+                List<Connector> connectors = new ArrayList<>();
+                boolean datagram = words[1].startsWith(udpPrefix);
+                try {
+                    for (int i = 2; i < words.length; ++i) {
+                        int eq = words[i].indexOf("=");
+                        if (eq <= 0)
+                            throw new IllegalArgumentException("option must be of the form name=value");
+                        settings.set(words[i].substring(0, eq), words[i].substring(eq+1));
+                    }
+                    settings.validate();
+                    if (datagram) {
+                        settings.validateDatagram();
+                        String destination = words[1].substring(udpPrefix.length());
+                        if (destination.contains(","))
+                            throw new IllegalArgumentException("udp has one destination");
+                        connectors.add(parseConnector(destination, settings));
+                    } else if (!words[1].equals("mux")) {
+                        for (String destination : words[1].split(",", -1))
+                            connectors.add(parseConnector(destination, settings));
+                    }
+                } catch (IllegalArgumentException e) {
+                    context.log("parse error in config file line " + lineNr + ": " + e.getMessage());
+                    ++errors;
                     continue;
                 }
-                deployWSTcpEndpoint(sc, path, host, port);
+                if (settings.isNio() && !words[1].equals("mux")) {
+                    try {
+                        getSelectorPool();
+                    } catch (IOException e) {
+                        context.log("failed to start selector threads", e);
+                        ++errors;
+                        continue;
+                    }
+                }
+                if (settings.getResume() > 0)
+                    getTimer();
+                if (settings.isWatched())
+                    getIdleWheel();
+                if (settings.isVirtualThreads() && !Threads.isVirtualSupported())
+                    context.log("virtual threads not supported, endpoint " + path + " uses platform threads");
+                Destinations destinations = words[1].equals("mux") ? null : new Destinations(context, connectors, settings);
+                next.put(path, new Route(path, spec, destinations, settings, datagram));
             }
         } catch (IOException e) {
             context.log("IO error reading config file", e);
+            ++errors;
         } finally {
             try {
                 in.close();
@@ -92,8 +392,144 @@ public class WSTcpServletContextListener implements ServletContextListener {
                 context.log("IO error closing config file", e);
             }
         }
+        return errors;
+    }
+
+    // applies the config file: new sessions use the new routes, those in flight keep their
+    // connections; on reload, a file with errors is not applied at all
+    protected synchronized void load(boolean initial) {
+        Map<String, Route> current = routes.get();
+        Map<String, Route> next = new LinkedHashMap<>();
+        int errors = readConfig(current, next);
+        if (errors == -1 || (errors > 0 && !initial)) {
+            if (!initial)
+                context.log("not reloading config file, keeping the current endpoints");
+            return;
+        }
+        for (String path : new ArrayList<>(next.keySet())) {
+            if (!deployed.contains(path) && !deploy(path))
+                next.remove(path);
+        }
+        routes.set(Collections.unmodifiableMap(next));
+        // start the pools of new routes, and stop those of replaced ones
+        for (Route route : next.values()) {
+            if (current.get(route.getPath()) != route && !route.isMux())
+                route.getDestinations().start();
+        }
+        for (Route route : current.values()) {
+            if (next.get(route.getPath()) != route && !route.isMux())
+                route.getDestinations().close();
+        }
+        if (!initial)
+            context.log("reloaded config file, " + next.size() + " endpoints");
+    }
+
+    // reloads the config file when it changes, when it is a file on disk
+    protected void startWatching() {
+        String realPath = context.getRealPath(configFile);
+        if (realPath == null) {
+            context.log("config file is not on disk, not watching it for changes");
+            return;
+        }
+        final Path file = Paths.get(realPath);
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            context.log("could not watch config file for changes", e);
+            return;
+        }
+        final WatchService w = watcher;
+        watcherThread = new Thread("wstcp-config") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = w.take();
+                        boolean changed = false;
+                        // an editor may write the file in several steps, wait until they are done
+                        while (key != null) {
+                            for (WatchEvent<?> event : key.pollEvents()) {
+                                if (file.getFileName().equals(event.context()))
+                                    changed = true;
+                            }
+                            key.reset();
+                            key = w.poll(200, TimeUnit.MILLISECONDS);
+                        }
+                        if (changed)
+                            load(false);
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    // context destroyed
+                }
+            }
+        };
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        context = sce.getServletContext();
+        context.setAttribute(MetricsServlet.metricsAttribute, metrics);
+        serverContainer = (ServerContainer)context.getAttribute(ServerContainer.class.getName());
+        String param = context.getInitParameter(globalRateParam);
+        if (param != null) {
+            try {
+                int rate = EndpointSettings.parseRate(globalRateParam, param);
+                if (rate > 0) {
+                    globalUpLimit = new TokenBucket(rate);
+                    globalDownLimit = new TokenBucket(rate);
+                }
+            } catch (IllegalArgumentException e) {
+                context.log("invalid value for " + globalRateParam + ": " + e.getMessage());
+            }
+        }
+        load(true);
+        startWatching();
     }
 
     @Override
-    public void contextDestroyed(ServletContextEvent sce) { }
+    public void contextDestroyed(ServletContextEvent sce) {
+        if (watcherThread != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                context.log("IO error closing watch service", e);
+            }
+            watcherThread.interrupt();
+            try {
+                watcherThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            watcherThread = null;
+        }
+        for (ObjectName name : mbeans.values()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                context.log("could not unregister MBean " + name + ": " + e.getMessage());
+            }
+        }
+        mbeans.clear();
+        for (Route route : routes.getAndSet(Collections.<String, Route>emptyMap()).values()) {
+            if (!route.isMux())
+                route.getDestinations().close();
+        }
+        for (ResumableTunnel tunnel : tunnels.values())
+            tunnel.shutdown();
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        if (idleWheel != null) {
+            idleWheel.close();
+            idleWheel = null;
+        }
+        if (selectorPool != null) {
+            selectorPool.close();
+            selectorPool = null;
+        }
+    }
 }
@@ -0,0 +1,9 @@
+#!/bin/sh
+# starts the client with the class data sharing archive that make created next to it, if any
+# (make leaves it empty when it could not create one);
+# JVM warnings go to stderr, as stdout carries the tunnel
+dir=$(cd "$(dirname "$0")" && pwd)
+if [ -s "$dir/wstcp-client.jsa" ]; then
+    exec java -Xlog:disable -Xlog:all=warning:stderr -XX:SharedArchiveFile="$dir/wstcp-client.jsa" -jar "$dir/wstcp-client.jar" "$@"
+fi
+exec java -jar "$dir/wstcp-client.jar" "$@"